@@ -2,28 +2,53 @@ package com.vmware.fdmsecprotomgmt;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
-import com.vmware.vim25.ClusterConfigInfo;
 import com.vmware.vim25.ClusterConfigInfoEx;
 import com.vmware.vim25.ClusterConfigSpecEx;
 import com.vmware.vim25.ClusterDasConfigInfo;
-import com.vmware.vim25.HostRuntimeInfo;
 import com.vmware.vim25.HostService;
 import com.vmware.vim25.HostSystemConnectionState;
+import com.vmware.vim25.LocalizedMethodFault;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.ObjectSpec;
 import com.vmware.vim25.OptionValue;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.RetrieveOptions;
+import com.vmware.vim25.RetrieveResult;
+import com.vmware.vim25.SelectionSpec;
 import com.vmware.vim25.TaskInfoState;
+import com.vmware.vim25.TraversalSpec;
 import com.vmware.vim25.mo.ClusterComputeResource;
+import com.vmware.vim25.mo.ContainerView;
 import com.vmware.vim25.mo.HostServiceSystem;
 import com.vmware.vim25.mo.HostSystem;
-import com.vmware.vim25.mo.InventoryNavigator;
 import com.vmware.vim25.mo.ManagedEntity;
+import com.vmware.vim25.mo.PropertyCollector;
 import com.vmware.vim25.mo.ServiceInstance;
 import com.vmware.vim25.mo.Task;
 
@@ -90,7 +115,6 @@ public class ESXi5xFDMSSLConfigUpdater
     private final String SSH_SERVICE = "TSM-SSH";
     private String SERVICE_RUNNING = "on";
     private String SERVICE_STOPPED = "off";
-    private boolean cleanupStopSSHService = false;
 
     // VC inventory related objects
     public static final String DC_MOR_TYPE = "Datacenter";
@@ -99,10 +123,25 @@ public class ESXi5xFDMSSLConfigUpdater
     public static final String HOST_MOR_TYPE = "HostSystem";
     public static final String VM_MOR_TYPE = "VirtualMachine";
 
+    // Qualify ESXi hosts over SSH (esxcli) even when vSphere API reports their version and build
+    private boolean forceSshQualification = false;
+
+    // ESXi hosts of a cluster checked at the same time, for SSLv3 configuration support
+    private final int QUALIFICATION_HOSTS_IN_PARALLEL = 16;
+
+    // Max hosts whose SSH service state is restored at the same time
+    private final int SSH_RESTORE_HOSTS_IN_PARALLEL = 16;
+
+    // Page size of the property retrieval used to discover HA clusters and their hosts
+    private final int INVENTORY_PAGE_SIZE = 1000;
+
+    // Names, versions and connection states of clusters and hosts, filled once by the discovery
+    private final InventoryModel inventory = new InventoryModel();
+
     private String tls_protos_enable;
     private ArrayList<String> secProtosToEnable;
     private File existingFilePtr;
-    private boolean cluAdvOpAdded;
+    private HostInfoHelper.HostsInfoIndex hostsInfoIndex;
 
     // FDM Values
     private final String HA_SSL_CONFIG_OPTION = "das.config.vmacore.ssl.sslOptions";
@@ -114,6 +153,34 @@ public class ESXi5xFDMSSLConfigUpdater
      */
     private String HA_SSL_OP_VAL;
     private final int FDM_PORT = 8182;
+
+    // Time budgets of the protocol scanner, per version probe and per host
+    private int scanProbeTimeoutMillis = TestSSLServer.DEFAULT_PROBE_TIMEOUT_MS;
+    private int scanHostTimeoutMillis = TestSSLServer.DEFAULT_ENDPOINT_TIMEOUT_MS;
+
+    // FDM port scanner, configured from the command line and shared by all scanning threads
+    private SSLProtocolScanner fdmScanner = new SSLProtocolScanner(SSLProtocolScanner.DEFAULT_CONFIG);
+
+    // Recorded in place of the protocol list, when the scan of a host ran out of time
+    private final String SCAN_TIMED_OUT = "TIMED OUT";
+
+    // Cipher suite audit of the FDM port of clustered hosts, run once a cluster is done with
+    private boolean cipherAudit = false;
+    private final int CIPHER_AUDIT_HOSTS_IN_PARALLEL = 8;
+    private final String CIPHER_AUDIT_FAILED = "AUDIT FAILED";
+    private final Map<String, String> cipherAuditOfHosts = new ConcurrentHashMap<String, String>();
+
+    // Hosts of a cluster scanned at the same time, when checking the protocols before the change
+    private final int PRECHECK_SCANS_IN_PARALLEL = 16;
+
+    // Scan results shared by the pre-check, post-verify and restore paths of a cluster run
+    private final ScanResultCache scanResultCache = new ScanResultCache(ScanResultCache.DEFAULT_TTL_MS);
+
+    // Time allowed for the Reconfig HA tasks of a cluster's hosts to complete
+    private final int FDM_RECONFIG_TIMEOUT = 600; // 10 Minutes
+
+    // HA Clusters configured at the same time, each with its own ClusterExecutionContext
+    private int clusterParallelism = 1;
     private final String DEFAULT_ENABLE_SSLOP_VAL = "16924672";
     private final String DEFAULT_DISABLE_SSLOP_VAL = "50479104";
 
@@ -124,18 +191,20 @@ public class ESXi5xFDMSSLConfigUpdater
         }
     };
 
-    // Map <Hostname, TLS protocols in string>
-    private Map<String, String> beforeTLSProtosOfCluHosts;
-    private Map<String, String> afterTLSProtosOfCluHosts;
-
-    private List<OverallResultHolderClass> listOfClustersResultObj;
+    private ClusterResultAggregator clusterResults;
 
     // Cluster, list of TLS Qualified Hosts
     private Map<ManagedEntity, List<HostSystem>> allClusterNHostsMap;
 
-    // HostName, SSH Connection obj for host
+    // HostName, SSH service state of host
     private List<HostSSHInfoClass> sslQualHostSSHInfo;
 
+    // SSH connections to ESXi hosts, bounded in number and closed when left idle
+    private final int SSH_POOL_MAX_CONNECTIONS = 32;
+    private final long SSH_POOL_IDLE_TIMEOUT_MS = 60 * 1000;
+    private final SSHUtil.SSHConnectionPool sshConnPool = new SSHUtil.SSHConnectionPool(SSH_POOL_MAX_CONNECTIONS,
+        SSH_POOL_IDLE_TIMEOUT_MS);
+
     // private boolean clusterHostsTLSPreExists;
     // <hostname>, <HostTLSConfigResultHolder - contains port, before & after TLS Sec proto information>
     private HashMap<String, HostSSLResultHolderClass> hostSSLconfigResultHolderObj;
@@ -147,6 +216,8 @@ public class ESXi5xFDMSSLConfigUpdater
     public ESXi5xFDMSSLConfigUpdater(String[] cmdProps)
     {
         makeProperties(cmdProps);
+        fdmScanner = new SSLProtocolScanner(new SSLProtocolScanner.ScannerConfig(
+            TestSSLServer.DEFAULT_MAX_PROBES_PER_ENDPOINT, scanProbeTimeoutMillis, scanHostTimeoutMillis));
     }
 
     /**
@@ -186,6 +257,33 @@ public class ESXi5xFDMSSLConfigUpdater
             } else if (cmdProps[i].equals("--hostsinfofile")) {
                 hostsInfoFileLocation = cmdProps[i + 1];
                 System.out.println("Hosts information file:" + hostsInfoFileLocation);
+            } else if (cmdProps[i].equals("--scanprobetimeout")) {
+                scanProbeTimeoutMillis = parseTimeoutSecs(cmdProps[i + 1], scanProbeTimeoutMillis);
+                System.out.println("Scanner probe timeout (ms):" + scanProbeTimeoutMillis);
+            } else if (cmdProps[i].equals("--scanhosttimeout")) {
+                scanHostTimeoutMillis = parseTimeoutSecs(cmdProps[i + 1], scanHostTimeoutMillis);
+                System.out.println("Scanner host timeout (ms):" + scanHostTimeoutMillis);
+            } else if (cmdProps[i].equals("--sshconnecttimeout")) {
+                int sshConnectTimeoutMillis = parseTimeoutSecs(cmdProps[i + 1], SSHUtil.DEFAULT_CONNECT_TIMEOUT_MS);
+                SSHUtil.setConnectTimeout(sshConnectTimeoutMillis);
+                System.out.println("SSH connect timeout (ms):" + sshConnectTimeoutMillis);
+            } else if (cmdProps[i].equals("--sshkextimeout")) {
+                int sshKexTimeoutMillis = parseTimeoutSecs(cmdProps[i + 1], SSHUtil.DEFAULT_KEX_TIMEOUT_MS);
+                SSHUtil.setKexTimeout(sshKexTimeoutMillis);
+                System.out.println("SSH key exchange timeout (ms):" + sshKexTimeoutMillis);
+            } else if (cmdProps[i].equals("--clusterparallelism")) {
+                try {
+                    clusterParallelism = Math.max(1, Integer.parseInt(cmdProps[i + 1].trim()));
+                } catch (NumberFormatException nfe) {
+                    System.err.println("Invalid cluster parallelism: " + cmdProps[i + 1] + ", using: " + clusterParallelism);
+                }
+                System.out.println("Clusters configured in parallel:" + clusterParallelism);
+            } else if (cmdProps[i].equals("forcesshqual")) {
+                forceSshQualification = true;
+                System.out.println("ESXi version check over SSH : Enable");
+            } else if (cmdProps[i].equals("cipheraudit")) {
+                cipherAudit = true;
+                System.out.println("Cipher suite audit : Enable");
             } else if (cmdProps[i].equals("enablessl")) {
                 tls_protos_enable = PROTO_SSLV3 + "," + PROTO_TLS10 + "," + PROTO_TLS11 + "," + PROTO_TLS12;
                 enableSsl = true;
@@ -199,6 +297,24 @@ public class ESXi5xFDMSSLConfigUpdater
         System.out.println("-------------------------------------------------------------------\n");
     }
 
+    /**
+     * Parse a timeout given in seconds, falling back to the default on an invalid value
+     */
+    private int
+    parseTimeoutSecs(String timeoutSecs, int defaultMillis)
+    {
+        try {
+            int secs = Integer.parseInt(timeoutSecs.trim());
+            if (secs > 0) {
+                return secs * 1000;
+            }
+        } catch (NumberFormatException nfe) {
+            // fall through
+        }
+        System.err.println("Invalid timeout value: " + timeoutSecs + ", using default (ms): " + defaultMillis);
+        return defaultMillis;
+    }
+
     /**
      * Validate property values
      */
@@ -392,35 +508,37 @@ public class ESXi5xFDMSSLConfigUpdater
                 if (tempAllClusterNHostsMap.size() > 0) {
                     System.out.println(
                         "\n* * * * Checking if ESXi Server version is supported for SSLv3 configuration ...* * * *");
-                    sslQualHostSSHInfo = new ArrayList<HostSSHInfoClass>();
+                    sslQualHostSSHInfo = Collections.synchronizedList(new ArrayList<HostSSHInfoClass>());
 
                     // Traverse through each cluster, and each host
                     for (ManagedEntity tempHaCluster : tempAllClusterNHostsMap.keySet()) {
                         System.out.println(
-                            "\n ~~~~~~~~~~~~~~~~~~ Cluster : " + tempHaCluster.getName() + " ~~~~~~~~~~~~~~~~~~");
+                            "\n ~~~~~~~~~~~~~~~~~~ Cluster : " + inventory.nameOf(tempHaCluster) + " ~~~~~~~~~~~~~~~~~~");
                         try {
                             List<HostSystem> currentClusterHosts = tempAllClusterNHostsMap.get(tempHaCluster);
 
                             if (esxUsername != null && esxPassword != null) {
-                                List<HostSystem> sslQualifiedCluHosts = new ArrayList<>();
-
+                                List<HostInfoHelper.HostsInfoHolderClass> cluHostsInfo =
+                                    new ArrayList<HostInfoHelper.HostsInfoHolderClass>();
                                 for (HostSystem tempHs : currentClusterHosts) {
-                                    if (hostVerCheckerForSSLSupport(tempHs, esxUsername, esxPassword)) {
-                                        sslQualifiedCluHosts.add(tempHs);
-                                    } else {
-                                        break;
-                                    }
+                                    HostInfoHelper.HostsInfoHolderClass hostInfoObj =
+                                        new HostInfoHelper.HostsInfoHolderClass();
+                                    hostInfoObj.hostSys = tempHs;
+                                    hostInfoObj.username = esxUsername;
+                                    hostInfoObj.password = esxPassword;
+                                    cluHostsInfo.add(hostInfoObj);
                                 }
+                                List<HostSystem> sslQualifiedCluHosts = qualifyHostsForSSLSupport(cluHostsInfo);
 
                                 if (currentClusterHosts.size() == sslQualifiedCluHosts.size()) {
                                     allClusterNHostsMap.put(tempHaCluster, sslQualifiedCluHosts);
                                 } else {
                                     System.err.println(
-                                        "Not all hosts from the Cluster: " + tempHaCluster.getName()
+                                        "Not all hosts from the Cluster: " + inventory.nameOf(tempHaCluster)
                                             + " are running ESXi version"
                                             + "which is supported for SSLv3 configuration.");
                                     System.err.println(
-                                        "Skipping cluster: " + tempHaCluster.getName() + " from SSLv3 configuration");
+                                        "Skipping cluster: " + inventory.nameOf(tempHaCluster) + " from SSLv3 configuration");
                                     cleanupHostSSHConnState();
                                 }
 
@@ -429,44 +547,34 @@ public class ESXi5xFDMSSLConfigUpdater
                                     currentClusterHosts);
                                 if (hostsListFromFile != null && hostsListFromFile.size() > 0) {
                                     if (hostsListFromFile.size() == currentClusterHosts.size()) {
-                                        List<HostSystem> sslQualifiedCluHosts = new ArrayList<>();
-
-                                        for (HostInfoHelper.HostsInfoHolderClass hostInfoObj : hostsListFromFile) {
-                                            if (hostVerCheckerForSSLSupport(
-                                                hostInfoObj.hostSys,
-                                                hostInfoObj.username,
-                                                hostInfoObj.password)) {
-                                                sslQualifiedCluHosts.add(hostInfoObj.hostSys);
-                                            } else {
-                                                break;
-                                            }
-                                        }
+                                        List<HostSystem> sslQualifiedCluHosts = qualifyHostsForSSLSupport(
+                                            hostsListFromFile);
 
                                         if (currentClusterHosts.size() == sslQualifiedCluHosts.size()) {
                                             allClusterNHostsMap.put(tempHaCluster, sslQualifiedCluHosts);
                                         } else {
                                             System.err.println(
-                                                "Not all hosts from the Cluster: " + tempHaCluster.getName()
+                                                "Not all hosts from the Cluster: " + inventory.nameOf(tempHaCluster)
                                                     + " are running ESXi version"
                                                     + "which is supported for SSLv3 configuration.");
                                             System.err.println(
-                                                "Skipping cluster: " + tempHaCluster.getName()
+                                                "Skipping cluster: " + inventory.nameOf(tempHaCluster)
                                                     + " from SSLv3 configuration");
                                             cleanupHostSSHConnState();
                                         }
                                     } else {
                                         System.err.println("Current active Hosts count from Cluster: "
-                                            + tempHaCluster.getName() + " and Hosts count from HostInfoFile: "
+                                            + inventory.nameOf(tempHaCluster) + " and Hosts count from HostInfoFile: "
                                             + hostsInfoFileLocation + " does not match.");
                                         System.err.println(
-                                            "Skipping cluster: " + tempHaCluster.getName()
+                                            "Skipping cluster: " + inventory.nameOf(tempHaCluster)
                                                 + " from SSLv3 configuration");
                                     }
                                 } else {
                                     System.err.println(
                                         "The hosts specified in HostInfoFile: " + hostsInfoFileLocation
-                                            + " does not belong to cluster: " + tempHaCluster.getName());
-                                    System.err.println("Skipping cluster: " + tempHaCluster.getName());
+                                            + " does not belong to cluster: " + inventory.nameOf(tempHaCluster));
+                                    System.err.println("Skipping cluster: " + inventory.nameOf(tempHaCluster));
                                 }
                             }
 
@@ -491,30 +599,109 @@ public class ESXi5xFDMSSLConfigUpdater
     }
 
     /**
-     * Restore SSH Service state on host and close the SSH connection
+     * Check all hosts of a cluster for SSLv3 configuration support, on a bounded pool. Checks not
+     * started yet are dropped at the first unsupported host. The ones already running are left to
+     * complete, so that an SSH service they started is restored at cleanup
+     *
+     * @return hosts found supported, in the given order
+     */
+    private List<HostSystem>
+    qualifyHostsForSSLSupport(List<HostInfoHelper.HostsInfoHolderClass> hostsInfo)
+    {
+        ExecutorService qualPool = Executors.newFixedThreadPool(Math.max(1,
+            Math.min(QUALIFICATION_HOSTS_IN_PARALLEL, hostsInfo.size())));
+        CompletionService<Boolean> qualCompletion = new ExecutorCompletionService<Boolean>(qualPool);
+        List<Future<Boolean>> hostChecks = new ArrayList<Future<Boolean>>();
+        List<HostSystem> sslQualifiedHosts = new ArrayList<HostSystem>();
+
+        try {
+            for (final HostInfoHelper.HostsInfoHolderClass hostInfoObj : hostsInfo) {
+                hostChecks.add(qualCompletion.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call()
+                    {
+                        return hostVerCheckerForSSLSupport(hostInfoObj.hostSys, hostInfoObj.username,
+                            hostInfoObj.password);
+                    }
+                }));
+            }
+
+            for (int i = 0; i < hostChecks.size(); i++) {
+                Future<Boolean> checked = qualCompletion.take();
+                Boolean supported = null;
+                try {
+                    supported = checked.get();
+                } catch (ExecutionException ee) {
+                    supported = Boolean.FALSE;
+                }
+                if (!Boolean.TRUE.equals(supported)) {
+                    break;
+                }
+            }
+        } catch (InterruptedException ie) {
+            System.err.println("Interrupted while checking ESXi hosts version for SSLv3 configuration support");
+            Thread.currentThread().interrupt();
+        } finally {
+            for (Future<Boolean> tempCheck : hostChecks) {
+                tempCheck.cancel(false);
+            }
+            qualPool.shutdown();
+            try {
+                while (!qualPool.awaitTermination(1, TimeUnit.MINUTES)) {
+                    System.out.println("Waiting for the ESXi host version checks already running to complete ...");
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        for (int i = 0; i < hostChecks.size(); i++) {
+            Future<Boolean> tempCheck = hostChecks.get(i);
+            try {
+                if (!tempCheck.isCancelled() && Boolean.TRUE.equals(tempCheck.get())) {
+                    sslQualifiedHosts.add(hostsInfo.get(i).hostSys);
+                }
+            } catch (Exception e) {
+                // Check failed, host is not qualified
+            }
+        }
+
+        return sslQualifiedHosts;
+    }
+
+    /**
+     * Restore SSH Service state on hosts and close the pooled SSH connections to them. Hosts are
+     * restored on a bounded pool
      */
     private void
     cleanupHostSSHConnState()
     {
         if (sslQualHostSSHInfo != null) {
-            for (HostSSHInfoClass hostSshInfoObj : sslQualHostSSHInfo) {
-                try {
-                    if (hostSshInfoObj.restoreSSHServiceState) {
-                        System.out.println("[" + hostSshInfoObj.hostName + "] Restore SSH service state ...");
-                        if (stopSSHService(hostSshInfoObj.hostSys)) {
-                            System.out
-                                .println("[" + hostSshInfoObj.hostName + "] Successfully reverted SSH service state");
-                        } else {
-                            System.out.println(
-                                "[" + hostSshInfoObj.hostName + "] [ALERT] Failed to revert SSH Service state");
-                        }
-                        if (hostSshInfoObj.hostSshConnObj != null) {
-                            hostSshInfoObj.hostSshConnObj.close();
+            List<HostSSHInfoClass> hostsSshInfo;
+            synchronized (sslQualHostSSHInfo) {
+                hostsSshInfo = new ArrayList<HostSSHInfoClass>(sslQualHostSSHInfo);
+            }
+
+            if (hostsSshInfo.size() > 0) {
+                ExecutorService restorePool = Executors.newFixedThreadPool(
+                    Math.min(SSH_RESTORE_HOSTS_IN_PARALLEL, hostsSshInfo.size()));
+                for (final HostSSHInfoClass hostSshInfoObj : hostsSshInfo) {
+                    restorePool.submit(new Runnable() {
+                        @Override
+                        public void run()
+                        {
+                            restoreHostSSHState(hostSshInfoObj);
                         }
+                    });
+                }
+                restorePool.shutdown();
+                try {
+                    while (!restorePool.awaitTermination(1, TimeUnit.MINUTES)) {
+                        System.out.println("Waiting for SSH service state of ESXi hosts to be restored ...");
                     }
-                } catch (Exception e) {
-                    System.err.println(
-                        "[" + hostSshInfoObj.hostName + "] Caught exception while cleaning up SSH related information");
+                } catch (InterruptedException ie) {
+                    System.err.println("Interrupted while restoring SSH service state of ESXi hosts");
+                    Thread.currentThread().interrupt();
                 }
             }
         }
@@ -522,34 +709,69 @@ public class ESXi5xFDMSSLConfigUpdater
         sslQualHostSSHInfo = null;
     }
 
+    /**
+     * Restore SSH Service state on host and close the pooled SSH connections to it
+     */
+    private void
+    restoreHostSSHState(HostSSHInfoClass hostSshInfoObj)
+    {
+        try {
+            // Close pooled connections to the host before its SSH service is stopped
+            sshConnPool.evictHost(hostSshInfoObj.hostName);
+            if (hostSshInfoObj.restoreSSHServiceState) {
+                System.out.println("[" + hostSshInfoObj.hostName + "] Restore SSH service state ...");
+                if (stopSSHService(hostSshInfoObj)) {
+                    System.out
+                        .println("[" + hostSshInfoObj.hostName + "] Successfully reverted SSH service state");
+                } else {
+                    System.out.println(
+                        "[" + hostSshInfoObj.hostName + "] [ALERT] Failed to revert SSH Service state");
+                }
+            }
+        } catch (Exception e) {
+            System.err.println(
+                "[" + hostSshInfoObj.hostName + "] Caught exception while cleaning up SSH related information");
+        }
+    }
+
     /**
      * Read hosts information from file
+     *
+     * The file is indexed by host name on first use. Clustered hosts are looked up in the index and
+     * checked against the discovered inventory; only their passwords get decrypted
      */
     private List<HostInfoHelper.HostsInfoHolderClass>
     readHostsInfoFromFile(List<HostSystem> clusteredHosts)
     {
         List<HostInfoHelper.HostsInfoHolderClass> hostsInfo = new ArrayList<HostInfoHelper.HostsInfoHolderClass>();
 
-        List<HostInfoHelper.HostsInfoHolderClass> tempAllHostsListFromFile = HostInfoHelper
-            .readHostsInfoFile(existingFilePtr);
-        if (tempAllHostsListFromFile != null && tempAllHostsListFromFile.size() > 0) {
-            hostsInfo = new ArrayList<HostInfoHelper.HostsInfoHolderClass>();
-            for (HostInfoHelper.HostsInfoHolderClass tempHostInfo : tempAllHostsListFromFile) {
+        if (hostsInfoIndex == null) {
+            hostsInfoIndex = HostInfoHelper.indexHostsInfoFile(existingFilePtr);
+        }
+        if (hostsInfoIndex != null && hostsInfoIndex.size() > 0) {
+            for (HostSystem tempCluHostSys : clusteredHosts) {
+                String hostName = inventory.nameOf(tempCluHostSys);
+                HostInfoHelper.HostsInfoHolderClass tempHostInfo = hostsInfoIndex.get(hostName);
+                if (tempHostInfo == null) {
+                    continue;
+                }
 
-                for (HostSystem tempCluHostSys : clusteredHosts) {
-                    if (tempCluHostSys.getName().equals(tempHostInfo.hostName)) {
-                        System.out.println(
-                            "[" + tempHostInfo.hostName + "] check if ESXi host exist & connected in VC inventory ...");
-                        HostSystem tempHostSysFrmFile = retrieveSingleHostSys(tempHostInfo.hostName);
-                        if (tempHostSysFrmFile != null) {
-                            tempHostInfo.hostSys = tempCluHostSys;
-                            hostsInfo.add(tempHostInfo);
-                        } else {
-                            System.out.println(
-                                "Skipping ESXi host: " + tempHostInfo.hostName
-                                    + ", as NOW; Either it is not in connected state Or it does not exist in inventory");
-                        }
+                System.out.println("[" + hostName + "] check if ESXi host exist & connected in VC inventory ...");
+                HostSystemConnectionState connState = null;
+                try {
+                    connState = inventory.connectionStateOf(tempCluHostSys);
+                } catch (Exception e) {
+                    System.err.println("[" + hostName + "] Caught exception while reading connection state");
+                }
+                if (HostSystemConnectionState.connected.equals(connState)) {
+                    if (hostsInfoIndex.resolvePassword(tempHostInfo)) {
+                        tempHostInfo.hostSys = tempCluHostSys;
+                        hostsInfo.add(tempHostInfo);
                     }
+                } else {
+                    System.out.println(
+                        "Skipping ESXi host: " + hostName
+                            + ", as NOW; Either it is not in connected state Or it does not exist in inventory");
                 }
             }
         }
@@ -557,30 +779,84 @@ public class ESXi5xFDMSSLConfigUpdater
     }
 
     /**
-     * Return hosts reference
+     * Check ESXi hosts version to determine if SSLv3 configuration is supported or not
+     * SSLv3 Configuration support starts from 5.5U3b/P07 release and onwards
+     *
+     * The version and build retrieved from vSphere API during discovery are used first. SSH is used
+     * only when those can not decide, or when SSH based qualification is forced
      */
-    private HostSystem
-    retrieveSingleHostSys(String hostName)
+    private boolean
+    hostVerCheckerForSSLSupport(HostSystem hostSys, String esxUserName, String esxPasswd)
     {
-        HostSystem hostSys = null;
+        if (!forceSshQualification) {
+            Boolean sslConfigSupported = apiVerCheckerForSSLSupport(hostSys);
+            if (sslConfigSupported != null) {
+                return sslConfigSupported;
+            }
+            System.out.println("[" + inventory.nameOf(hostSys) + "] Version information from vSphere API is not"
+                + " conclusive, fall back to SSH based version check");
+        }
 
-        // get first datacenters in the environment.
-        InventoryNavigator navigator = new InventoryNavigator(si.getRootFolder());
+        return sshVerCheckerForSSLSupport(hostSys, esxUserName, esxPasswd);
+    }
 
+    /**
+     * Check ESXi host version from the product information (config.product) retrieved through vSphere API.
+     * Within the supported release, the build number alone decides: builds at or above the supported
+     * build number are from the supported update level or later
+     *
+     * @return null, when the API data is missing or can not be interpreted
+     */
+    private Boolean
+    apiVerCheckerForSSLSupport(HostSystem hostSys)
+    {
+        InventoryModel.HostRecord hostRecord = inventory.getHost(hostSys.getMOR());
+        if (hostRecord == null || hostRecord.getVersion() == null || hostRecord.getBuild() == null) {
+            return null;
+        }
+
+        String hostName = hostRecord.getName();
+        String esxi_version = hostRecord.getVersion().trim();
+        Integer esxi_build = null;
         try {
-            hostSys = (HostSystem) navigator.searchManagedEntity(HOST_MOR_TYPE, hostName);
-        } catch (Exception e) {
-            System.err.println("Unable to retrieve provided Host's HostSystem object from inventory");
+            esxi_build = Integer.parseInt(hostRecord.getBuild().trim());
+        } catch (NumberFormatException nfe) {
+            return null;
+        }
+
+        if (!esxi_version.contains(SUPPORTED_55_VERSION)) {
+            System.err.println(
+                "[" + hostName + "] This ESXi host (" + esxi_version + ", Build-" + esxi_build
+                    + ") is NOT supported for SSLv3 security protocols configuration");
+            System.err.println(
+                "[" + hostName
+                    + "] SSLv3 Security protocol configuration is supported on release : 5.5P08, 6.0U2 and onwards");
+            return false;
+        }
+
+        if (compare(esxi_version, SUPPORTED_55_VERSION) >= 0
+            && esxi_build.compareTo(SUPPORTED_ESX_55_BUILD_NUMBER) >= 0) {
+            System.out.println(
+                "[" + hostName + "] This ESXi host (" + esxi_version + ", Build-" + esxi_build
+                    + ") is supported for SSLv3 security protocols configuration");
+            return true;
         }
-        return hostSys;
+
+        System.err.println(
+            "[" + hostName + "] This ESXi host (" + esxi_version + ", Build-" + esxi_build
+                + ") is NOT supported for SSLv3 security protocols configuration");
+        System.err.println(
+            "[" + hostName + "] SSLv3 Security protocol configuration is supported on versions "
+                + "equal to or higher than : " + SUPPORTED_55_VERSION + " Update-" + SUPPORTED_UPDATE_VER
+                + " Build-" + SUPPORTED_ESX_55_BUILD_NUMBER);
+        return false;
     }
 
     /**
-     * Check ESXi hosts version to determine if SSLv3 configuration is supported or not
-     * SSLv3 Configuration support starts from 5.5U3b/P07 release and onwards
+     * Check ESXi host version over SSH (esxcli), starting SSH service on the host if needed
      */
     private boolean
-    hostVerCheckerForSSLSupport(HostSystem hostSys, String esxUserName, String esxPasswd)
+    sshVerCheckerForSSLSupport(HostSystem hostSys, String esxUserName, String esxPasswd)
     {
         String esxi_version = null;
         Integer esxi_build = null;
@@ -590,7 +866,7 @@ public class ESXi5xFDMSSLConfigUpdater
         Integer supportedUpdateVersion = null;
         Integer supportedBuildNumber = null;
         Connection hostSshConnObj = null;
-        String hostName = hostSys.getName();
+        String hostName = inventory.nameOf(hostSys);
         HostSSHInfoClass hostSSHInfoObj = new HostSSHInfoClass();
 
         try {
@@ -598,22 +874,21 @@ public class ESXi5xFDMSSLConfigUpdater
                 "[" + hostName + "] Try to start SSH Service, if its not started already. "
                     + "This is needed to establish SSH Connection with ESXi host");
 
-            if (startSSHService(hostSys)) {
-                // restore the flag state
-                boolean restoreSSHServiceState = cleanupStopSSHService;
-                cleanupStopSSHService = false;
+            // populate the SSLv3 compatible host info first
+            hostSSHInfoObj.hostName = hostName;
+            hostSSHInfoObj.hostSys = hostSys;
 
-                // populate the SSLv3 compatible host info first
-                hostSSHInfoObj.hostName = hostName;
-                hostSSHInfoObj.hostSys = hostSys;
-                hostSSHInfoObj.restoreSSHServiceState = restoreSSHServiceState;
-
-                hostSshConnObj = SSHUtil.getSSHConnection(hostSys.getName(), esxUserName, esxPasswd);
+            if (startSSHService(hostSys, hostSSHInfoObj)) {
+                hostSshConnObj = sshConnPool.borrow(hostName, esxUserName, esxPasswd);
 
                 if (hostSshConnObj != null) {
-                    hostSSHInfoObj.hostSshConnObj = hostSshConnObj;
-
-                    String verCmdoutput = SSHUtil.getSSHOutputStream(hostSshConnObj, CMD_VERSION_CHECK);
+                    String verCmdoutput = null;
+                    try {
+                        verCmdoutput = SSHUtil.getSSHOutputStream(hostSshConnObj, CMD_VERSION_CHECK);
+                    } finally {
+                        // Connection is not needed beyond the version check, hand it back to the pool
+                        sshConnPool.release(hostSshConnObj);
+                    }
 
                     if (verCmdoutput != "" || verCmdoutput != null) {
                         String[] fullVersionString = verCmdoutput.split("\n");
@@ -718,82 +993,100 @@ public class ESXi5xFDMSSLConfigUpdater
     }
 
     /**
-     * Start SSH Services
+     * Start SSH Services. If the service had to be started, the host is marked for its SSH service
+     * state to be restored at cleanup.
+     *
+     * The service state and the service system of the host are taken from the inventory model, read
+     * for all hosts in one property retrieval at discovery. The host is asked only when those are missing
      */
     private boolean
-    startSSHService(HostSystem hostSys)
+    startSSHService(HostSystem hostSys, HostSSHInfoClass hostSSHInfoObj)
     {
         boolean startedService = false;
+        String hostName = hostSSHInfoObj.hostName;
 
         try {
-            HostServiceSystem hss = hostSys.getHostServiceSystem();
-            for (HostService tempHs : hss.getServiceInfo().getService()) {
-                String id = tempHs.getKey();
-                if (SSH_SERVICE.equalsIgnoreCase(id)) {
-                    if (!(getServiceState(hostSys, id).equalsIgnoreCase(SERVICE_RUNNING))) {
-                        hss.startService(id);
-
-                        // Check if we indeed were successful in starting services
-                        if (getServiceState(hostSys, id).equalsIgnoreCase(SERVICE_RUNNING)) {
-                            System.out.println(SSH_SERVICE + " service is in running state now");
-                            startedService = true;
-
-                            // below flag is for cleanup purpose - restoring
-                            // previous state
-                            cleanupStopSSHService = true;
-                            break;
-                        } else {
-                            System.err.println(SSH_SERVICE + " service could not be started");
-                            break;
-                        }
-                    } else {
-                        System.out.println(SSH_SERVICE + " service is already in running state");
-                        startedService = true;
-                        break;
-                    }
+            InventoryModel.HostRecord hostRecord = inventory.getHost(hostSys.getMOR());
+            HostServiceSystem hss = null;
+            Boolean sshRunning = null;
+            if (hostRecord != null && hostRecord.getServiceSystemMor() != null) {
+                hss = new HostServiceSystem(si.getServerConnection(), hostRecord.getServiceSystemMor());
+                sshRunning = hostRecord.isServiceRunning(SSH_SERVICE);
+            } else {
+                hss = hostSys.getHostServiceSystem();
+            }
+            if (sshRunning == null) {
+                String serviceState = getServiceState(hss, SSH_SERVICE);
+                if (serviceState != null) {
+                    sshRunning = SERVICE_RUNNING.equalsIgnoreCase(serviceState);
                 }
             }
+            hostSSHInfoObj.serviceSystem = hss;
+
+            if (sshRunning == null) {
+                System.err.println("[" + hostName + "] " + SSH_SERVICE + " service is not found on host");
+                refreshHostRecords(Collections.singletonList(hostSys));
+            } else if (sshRunning) {
+                System.out.println("[" + hostName + "] " + SSH_SERVICE + " service is already in running state");
+                startedService = true;
+            } else {
+                // startService returns once the service is running, and faults otherwise
+                hss.startService(SSH_SERVICE);
+                System.out.println("[" + hostName + "] " + SSH_SERVICE + " service is in running state now");
+                startedService = true;
+                if (hostRecord != null) {
+                    hostRecord.setServiceRunning(SSH_SERVICE, true);
+                }
+
+                // below flag is for cleanup purpose - restoring
+                // previous state
+                hostSSHInfoObj.restoreSSHServiceState = true;
+            }
         } catch (Exception e) {
-            System.err.println("Caught exception while starting SSH service");
+            System.err.println("[" + hostName + "] Caught exception while starting SSH service");
+            // Host may have changed state (disconnected, service started meanwhile)
+            refreshHostRecords(Collections.singletonList(hostSys));
         }
 
         return startedService;
     }
 
     /**
-     * Stop SSH Services
+     * Stop SSH Services, using the service system kept when the service was started
      */
     private boolean
-    stopSSHService(HostSystem hostSys)
+    stopSSHService(HostSSHInfoClass hostSSHInfoObj)
     {
         boolean stoppedService = false;
+        String hostName = hostSSHInfoObj.hostName;
+        HostServiceSystem hss = hostSSHInfoObj.serviceSystem;
 
         try {
-            HostServiceSystem hss = hostSys.getHostServiceSystem();
-            for (HostService tempHs : hss.getServiceInfo().getService()) {
-                String id = tempHs.getKey();
-                if (SSH_SERVICE.equalsIgnoreCase(id)) {
-                    if (!(getServiceState(hostSys, id).equalsIgnoreCase(SERVICE_STOPPED))) {
-                        hss.stopService(id);
-
-                        // Check if we indeed were successful in stopping services
-                        if (getServiceState(hostSys, id).equalsIgnoreCase(SERVICE_STOPPED)) {
-                            System.out.println(SSH_SERVICE + " service is stopped now");
-                            stoppedService = true;
-                            break;
-                        } else {
-                            System.err.println(SSH_SERVICE + " service could not be stopped");
-                            break;
-                        }
-                    } else {
-                        System.out.println(SSH_SERVICE + " service is already stopped");
-                        stoppedService = true;
-                        break;
-                    }
+            if (hss == null) {
+                hss = hostSSHInfoObj.hostSys.getHostServiceSystem();
+            }
+            try {
+                // stopService returns once the service is stopped, and faults otherwise
+                hss.stopService(SSH_SERVICE);
+                System.out.println("[" + hostName + "] " + SSH_SERVICE + " service is stopped now");
+                stoppedService = true;
+            } catch (Exception e) {
+                // Fine, if it got stopped meanwhile by someone else
+                if (SERVICE_STOPPED.equalsIgnoreCase(getServiceState(hss, SSH_SERVICE))) {
+                    System.out.println("[" + hostName + "] " + SSH_SERVICE + " service is already stopped");
+                    stoppedService = true;
+                } else {
+                    System.err.println("[" + hostName + "] " + SSH_SERVICE + " service could not be stopped");
+                }
+            }
+            if (stoppedService) {
+                InventoryModel.HostRecord hostRecord = inventory.getHost(hostSSHInfoObj.hostSys.getMOR());
+                if (hostRecord != null) {
+                    hostRecord.setServiceRunning(SSH_SERVICE, false);
                 }
             }
         } catch (Exception e) {
-            System.err.println("Caught exception while turning off SSH service");
+            System.err.println("[" + hostName + "] Caught exception while turning off SSH service");
         }
 
         return stoppedService;
@@ -803,11 +1096,10 @@ public class ESXi5xFDMSSLConfigUpdater
      * Get ServiceState
      */
     private String
-    getServiceState(HostSystem hs, String id) throws Exception
+    getServiceState(HostServiceSystem hss, String id) throws Exception
     {
         String serviceState = null;
 
-        HostServiceSystem hss = hs.getHostServiceSystem();
         for (HostService tempHsService : hss.getServiceInfo().getService()) {
             if (id.equalsIgnoreCase(tempHsService.getKey())) {
                 if (tempHsService.isRunning()) {
@@ -828,115 +1120,72 @@ public class ESXi5xFDMSSLConfigUpdater
     applySSLConfigOnClusters()
     {
         System.out.println("\n* * * * Apply SSLv3 configuration changes on Clusters ...* * * *");
-        listOfClustersResultObj = new ArrayList<OverallResultHolderClass>();
+        clusterResults = new ClusterResultAggregator();
+        prescanFDMPorts();
 
-        // For each Cluster, apply the changes
-        for (ManagedEntity tempHaCluster : allClusterNHostsMap.keySet()) {
-            boolean clusterConfigSuccess = false;
-
-            ClusterInfoClassForRestore copyOfOriClusterInfoObj = new ClusterInfoClassForRestore();
-            ClusterInfoClassForRestore oriClusterInfoObj = new ClusterInfoClassForRestore();
-            List<HostSystem> clusteredHosts = allClusterNHostsMap.get(tempHaCluster);
-            OverallResultHolderClass clusterResultHolderObj = new OverallResultHolderClass();
+        if (clusterParallelism > 1 && allClusterNHostsMap.size() > 1) {
+            int clustersInParallel = Math.min(clusterParallelism, allClusterNHostsMap.size());
+            System.out.println("Apply the changes on up to " + clustersInParallel + " clusters in parallel");
 
+            ExecutorService clusterPool = Executors.newFixedThreadPool(clustersInParallel);
+            List<Future<Void>> clusterRuns = new ArrayList<Future<Void>>();
             try {
-                System.out.println("\n******************************************************************************");
-                System.out.println("\t\t\t CLUSTER : " + tempHaCluster.getName());
-                System.out.println("******************************************************************************");
-                Thread.sleep(500);
-
-                /*
-                 * Check if required version of SSLv3 protocols are already running on the port
-                 */
-                beforeTLSProtosOfCluHosts = new HashMap<String, String>();
-
-                System.out.println("Check if requested protocols are enabled on clustered hosts ... ");
-                Boolean userReqdProtosRunning = null;
-                try {
-                    userReqdProtosRunning = checkSSLProtocols(clusteredHosts, true);
-                } catch (Exception e) {
-                    userReqdProtosRunning = null;
-                }
-
-                // if (!checkSSLProtocols(clusteredHosts, true)) {
-                if (userReqdProtosRunning != null) {
-                    if (!userReqdProtosRunning) {
-                        System.out
-                            .println("Clustered Hosts yet to be configured with required version of SSLv3 protocol");
-
-                        ClusterComputeResource haCcr = new ClusterComputeResource(si.getServerConnection(),
-                            tempHaCluster.getMOR());
-                        oriClusterInfoObj.cluster = tempHaCluster;
-                        oriClusterInfoObj.hosts = clusteredHosts;
-                        oriClusterInfoObj.clusterConfigInfo = (ClusterConfigInfoEx) haCcr.getConfigurationEx();
-                        oriClusterInfoObj.ccr = haCcr;
-
-                        // Take a copy of the original configuration, as a backup
-                        copyOfOriClusterInfoObj.cluster = tempHaCluster;
-                        copyOfOriClusterInfoObj.hosts = clusteredHosts;
-                        copyOfOriClusterInfoObj.clusterConfigInfo = (ClusterConfigInfoEx) haCcr.getConfigurationEx();
-                        copyOfOriClusterInfoObj.ccr = haCcr;
-
-                        /*
-                         * Apply the SSLv3 protocol configuration on Cluster and reconfigure HA on all clustered hosts
-                         */
-                        if (updateClusterWithSSLProtocols(oriClusterInfoObj)) {
-                            System.out.println("Updated the cluster with advanced option and reconfigured HA on hosts");
-
-                            // Check if we were indeed successful in rolling out the changes
-                            afterTLSProtosOfCluHosts = new HashMap<String, String>();
-                            if (verifySSLProtoPostReconfig(clusteredHosts, this.secProtosToEnable)) {
-                                System.out
-                                    .println("Succesfully enabled requested SSLv3 protocol on all clustered hosts");
-                                clusterConfigSuccess = true;
-
-                                // populate the result holder object and class
-                                clusterResultHolderObj.cluName = tempHaCluster.getName();
-                                clusterResultHolderObj.beforeTLSProtos = beforeTLSProtosOfCluHosts;
-                                clusterResultHolderObj.afterTLSProtos = afterTLSProtosOfCluHosts;
-                                listOfClustersResultObj.add(clusterResultHolderObj);
-                            } else {
-                                System.err.println("Failed to enable requested SSLv3 protocol on all clustered hosts");
-                            }
+                for (ManagedEntity tempHaCluster : allClusterNHostsMap.keySet()) {
+                    final ClusterExecutionContext cluCtx = new ClusterExecutionContext(tempHaCluster,
+                        allClusterNHostsMap.get(tempHaCluster));
+                    clusterRuns.add(clusterPool.submit(new Callable<Void>() {
+                        @Override
+                        public Void call()
+                        {
+                            applySSLConfigOnCluster(cluCtx);
+                            return null;
                         }
-                    } else {
-                        System.out
-                            .println("Clustered Hosts are already configured with required version of SSLv3 protocols");
-                        clusterConfigSuccess = true;
-                        // populate the result holder object and class
-                        clusterResultHolderObj.cluName = tempHaCluster.getName();
-                        clusterResultHolderObj.beforeTLSProtos = beforeTLSProtosOfCluHosts;
-
-                        afterTLSProtosOfCluHosts = new HashMap<String, String>();
-                        afterTLSProtosOfCluHosts.putAll(beforeTLSProtosOfCluHosts);
-                        clusterResultHolderObj.afterTLSProtos = afterTLSProtosOfCluHosts;
-                        listOfClustersResultObj.add(clusterResultHolderObj);
-                    }
+                    }));
                 }
 
-            } catch (Exception e) {
-                System.err.println("[AllClustersLoop] Caught exception while applying the changes on a cluster");
-                restoreClusterConfiguration(copyOfOriClusterInfoObj);
-            }
-
-            try {
-                if (!clusterConfigSuccess) {
-                    restoreClusterConfiguration(copyOfOriClusterInfoObj);
+                // Now wait for all clusters to complete
+                for (Future<Void> clusterRun : clusterRuns) {
+                    try {
+                        clusterRun.get();
+                    } catch (ExecutionException ee) {
+                        System.err.println("[AllClustersLoop] Caught exception while applying the changes on a cluster");
+                    }
                 }
-
-                // Print the cluster config result
-                if (listOfClustersResultObj != null && listOfClustersResultObj.size() > 0) {
-                    printSSLConfigResult(false, tempHaCluster.getName());
+            } catch (InterruptedException ie) {
+                System.err.println("Interrupted while waiting for the changes to be applied on clusters");
+                Thread.currentThread().interrupt();
+                // Clusters not started yet are skipped
+                for (Future<Void> clusterRun : clusterRuns) {
+                    clusterRun.cancel(false);
                 }
             } finally {
-                cluAdvOpAdded = false;
-                beforeTLSProtosOfCluHosts = null;
-                afterTLSProtosOfCluHosts = null;
+                // Clusters already started are left to complete, including their restore path, before
+                // the results get printed and the SSH service state of the hosts gets restored
+                clusterPool.shutdown();
+                boolean interrupted = false;
+                while (true) {
+                    try {
+                        if (clusterPool.awaitTermination(1, TimeUnit.MINUTES)) {
+                            break;
+                        }
+                        System.out.println("Waiting for the changes already running on clusters to complete ...");
+                    } catch (InterruptedException ie) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
             }
+        } else {
+            // For each Cluster, apply the changes
+            for (ManagedEntity tempHaCluster : allClusterNHostsMap.keySet()) {
+                applySSLConfigOnCluster(
+                    new ClusterExecutionContext(tempHaCluster, allClusterNHostsMap.get(tempHaCluster)));
+            }
+        }
 
-        } // End of Clusters - for loop
-
-        if (listOfClustersResultObj != null && listOfClustersResultObj.size() > 0) {
+        if (clusterResults.size() > 0) {
             // Print overall result
             printSSLConfigResult(true, null);
 
@@ -958,77 +1207,152 @@ public class ESXi5xFDMSSLConfigUpdater
             System.err.println(
                 "Caught exception while restoring SSH Service state of ESXi hosts, Pls check and revert the state manually");
         }
+        sshConnPool.close();
     }
 
     /**
-     * Print SSL Configuration result of provided or all hosts
+     * Check and apply SSLv3 protocol configuration on a single HA Enabled Cluster.
+     * All state of the cluster is kept in its context, the result is fed to the shared aggregator
      */
     private void
-    printSSLConfigResult(boolean overallResult, String clusterName)
+    applySSLConfigOnCluster(ClusterExecutionContext cluCtx)
     {
-        try {
-            if (listOfClustersResultObj != null && listOfClustersResultObj.size() > 0) {
-                if (overallResult) {
-                    hostSSLconfigResultHolderObj = new HashMap<String, HostSSLResultHolderClass>();
+        boolean clusterConfigSuccess = false;
 
-                    System.out
-                        .println("@@@@@@@@@@@@@@@@@ ALL CLUSTERED HOSTS SSL CONFIGURATION RESULT @@@@@@@@@@@@@@@@@");
-                    for (OverallResultHolderClass tempCluResObj : listOfClustersResultObj) {
-                        System.out.println("~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~");
-                        System.out.println(" SSL CONFIGURATION RESULT FOR CLUSTER: " + tempCluResObj.cluName);
-                        System.out.println("~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~");
-                        System.out.println("Protocols to ENABLE (as requested by user) : " + tls_protos_enable + "\n");
+        ClusterInfoClassForRestore copyOfOriClusterInfoObj = new ClusterInfoClassForRestore();
+        ClusterInfoClassForRestore oriClusterInfoObj = new ClusterInfoClassForRestore();
+        ManagedEntity tempHaCluster = cluCtx.cluster;
+        List<HostSystem> clusteredHosts = cluCtx.hosts;
+        OverallResultHolderClass clusterResultHolderObj = new OverallResultHolderClass();
 
-                        ResultTablePrinter resultObj = new ResultTablePrinter();
-                        resultObj.addLine("------------", "----", "--------------------", "-------------------");
-                        resultObj
-                            .addLine("HOST NAME   ", "PORT", "Before SSL/TLS Protocols", "After SSL/TLS Protocols");
-                        resultObj.addLine("------------", "----", "--------------------", "-------------------");
+        try {
+            System.out.println("\n******************************************************************************");
+            System.out.println("\t\t\t CLUSTER : " + inventory.nameOf(tempHaCluster));
+            System.out.println("******************************************************************************");
+            Thread.sleep(500);
 
-                        for (String hostName : tempCluResObj.beforeTLSProtos.keySet()) {
-                            String beforeProtos = tempCluResObj.beforeTLSProtos.get(hostName);
-                            String afterProtos = null;
+            /*
+             * Check if required version of SSLv3 protocols are already running on the port
+             */
+            System.out.println("Check if requested protocols are enabled on clustered hosts ... ");
+            Boolean userReqdProtosRunning = null;
+            try {
+                userReqdProtosRunning = checkSSLProtocols(cluCtx, true);
+            } catch (Exception e) {
+                userReqdProtosRunning = null;
+            }
 
-                            if (tempCluResObj.afterTLSProtos.containsKey(hostName)) {
-                                afterProtos = tempCluResObj.afterTLSProtos.get(hostName);
-                            }
+            // if (!checkSSLProtocols(clusteredHosts, true)) {
+            if (userReqdProtosRunning != null) {
+                if (!userReqdProtosRunning) {
+                    System.out
+                        .println("Clustered Hosts yet to be configured with required version of SSLv3 protocol");
 
-                            if (afterProtos == null) {
-                                afterProtos = "NULL (Pls check manually)";
-                            }
-                            resultObj.addLine(hostName, String.valueOf(FDM_PORT), beforeProtos, afterProtos);
+                    ClusterComputeResource haCcr = new ClusterComputeResource(si.getServerConnection(),
+                        tempHaCluster.getMOR());
+                    oriClusterInfoObj.cluster = tempHaCluster;
+                    oriClusterInfoObj.hosts = clusteredHosts;
+                    oriClusterInfoObj.clusterConfigInfo = (ClusterConfigInfoEx) haCcr.getConfigurationEx();
+                    oriClusterInfoObj.ccr = haCcr;
 
-                            // add in class object for creating file with all this information
-                            HostSSLResultHolderClass tlsResClassObj = new HostSSLResultHolderClass();
-                            tlsResClassObj.port = FDM_PORT;
-                            tlsResClassObj.beforeProtoList = beforeProtos;
-                            tlsResClassObj.afterProtoList = afterProtos;
-                            tlsResClassObj.clusterName = tempCluResObj.cluName;
-                            hostSSLconfigResultHolderObj.put(hostName, tlsResClassObj);
+                    // Take a copy of the original configuration, as a backup
+                    copyOfOriClusterInfoObj.cluster = tempHaCluster;
+                    copyOfOriClusterInfoObj.hosts = clusteredHosts;
+                    copyOfOriClusterInfoObj.clusterConfigInfo = (ClusterConfigInfoEx) haCcr.getConfigurationEx();
+                    copyOfOriClusterInfoObj.ccr = haCcr;
 
+                    /*
+                     * Apply the SSLv3 protocol configuration on Cluster and reconfigure HA on all clustered hosts
+                     */
+                    if (updateClusterWithSSLProtocols(cluCtx, oriClusterInfoObj)) {
+                        System.out.println("Updated the cluster with advanced option and reconfigured HA on hosts");
+
+                        // Check if we were indeed successful in rolling out the changes
+                        if (verifySSLProtoPostReconfig(cluCtx, this.secProtosToEnable)) {
+                            System.out
+                                .println("Succesfully enabled requested SSLv3 protocol on all clustered hosts");
+                            clusterConfigSuccess = true;
+
+                            // populate the result holder object and class
+                            clusterResultHolderObj.cluName = inventory.nameOf(tempHaCluster);
+                            clusterResultHolderObj.beforeTLSProtos = cluCtx.beforeTLSProtos;
+                            clusterResultHolderObj.afterTLSProtos = cluCtx.afterTLSProtos;
+                            clusterResults.add(clusterResultHolderObj);
+                        } else {
+                            System.err.println("Failed to enable requested SSLv3 protocol on all clustered hosts");
                         }
-                        resultObj.addLine("------------", "----", "--------------------", "-------------------");
-                        resultObj.print();
                     }
                 } else {
-                    System.out.println("~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~");
-                    System.out.println(" SSL CONFIGURATION RESULT FOR CLUSTER: " + clusterName);
-                    System.out.println("~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~");
-                    System.out.println("Protocols to ENABLE (as requested by user) : " + tls_protos_enable + "\n");
-
-                    ResultTablePrinter resultObj = new ResultTablePrinter();
-                    resultObj.addLine("------------", "----", "--------------------", "-------------------");
-                    resultObj.addLine("HOST NAME   ", "PORT", "Before SSL/TLS Protocols", "After SSL/TLS Protocols");
-                    resultObj.addLine("------------", "----", "--------------------", "-------------------");
-
-                    for (OverallResultHolderClass tempAllCluResObj : listOfClustersResultObj) {
-                        if (tempAllCluResObj.cluName.equals(clusterName)) {
-                            for (String hostName : tempAllCluResObj.beforeTLSProtos.keySet()) {
-                                String beforeProtos = tempAllCluResObj.beforeTLSProtos.get(hostName);
+                    System.out
+                        .println("Clustered Hosts are already configured with required version of SSLv3 protocols");
+                    clusterConfigSuccess = true;
+                    // populate the result holder object and class
+                    clusterResultHolderObj.cluName = inventory.nameOf(tempHaCluster);
+                    clusterResultHolderObj.beforeTLSProtos = cluCtx.beforeTLSProtos;
+
+                    cluCtx.afterTLSProtos.putAll(cluCtx.beforeTLSProtos);
+                    clusterResultHolderObj.afterTLSProtos = cluCtx.afterTLSProtos;
+                    clusterResults.add(clusterResultHolderObj);
+                }
+            } else {
+                System.err.println("Could not determine the protocols enabled on clustered hosts, skipping cluster: "
+                    + inventory.nameOf(tempHaCluster));
+            }
+
+        } catch (Exception e) {
+            System.err.println("[AllClustersLoop] Caught exception while applying the changes on a cluster");
+            restoreClusterConfiguration(cluCtx, copyOfOriClusterInfoObj);
+        }
+
+        if (!clusterConfigSuccess) {
+            restoreClusterConfiguration(cluCtx, copyOfOriClusterInfoObj);
+        }
+
+        if (cipherAudit) {
+            auditCipherSuitesOfCluHosts(clusteredHosts);
+        }
+
+        // Print the cluster config result
+        if (clusterResults.size() > 0) {
+            printSSLConfigResult(false, cluCtx.cluName);
+        }
+    }
+
+    /**
+     * Print SSL Configuration result of provided or all hosts
+     */
+    private void
+    printSSLConfigResult(boolean overallResult, String clusterName)
+    {
+        List<OverallResultHolderClass> listOfClustersResultObj = clusterResults.snapshot();
+
+        // Other clusters may still be logging, keep the result table in one piece
+        synchronized (System.out) {
+            try {
+                if (listOfClustersResultObj.size() > 0) {
+                    if (overallResult) {
+                        hostSSLconfigResultHolderObj = new HashMap<String, HostSSLResultHolderClass>();
+
+                        System.out
+                            .println("@@@@@@@@@@@@@@@@@ ALL CLUSTERED HOSTS SSL CONFIGURATION RESULT @@@@@@@@@@@@@@@@@");
+                        for (OverallResultHolderClass tempCluResObj : listOfClustersResultObj) {
+                            System.out.println("~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~");
+                            System.out.println(" SSL CONFIGURATION RESULT FOR CLUSTER: " + tempCluResObj.cluName);
+                            System.out.println("~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~");
+                            System.out.println("Protocols to ENABLE (as requested by user) : " + tls_protos_enable + "\n");
+
+                            ResultTablePrinter resultObj = new ResultTablePrinter();
+                            resultObj.addLine("------------", "----", "--------------------", "-------------------");
+                            resultObj
+                                .addLine("HOST NAME   ", "PORT", "Before SSL/TLS Protocols", "After SSL/TLS Protocols");
+                            resultObj.addLine("------------", "----", "--------------------", "-------------------");
+
+                            for (String hostName : tempCluResObj.beforeTLSProtos.keySet()) {
+                                String beforeProtos = tempCluResObj.beforeTLSProtos.get(hostName);
                                 String afterProtos = null;
 
-                                if (tempAllCluResObj.afterTLSProtos.containsKey(hostName)) {
-                                    afterProtos = tempAllCluResObj.afterTLSProtos.get(hostName);
+                                if (tempCluResObj.afterTLSProtos.containsKey(hostName)) {
+                                    afterProtos = tempCluResObj.afterTLSProtos.get(hostName);
                                 }
 
                                 if (afterProtos == null) {
@@ -1036,20 +1360,60 @@ public class ESXi5xFDMSSLConfigUpdater
                                 }
                                 resultObj.addLine(hostName, String.valueOf(FDM_PORT), beforeProtos, afterProtos);
 
+                                // add in class object for creating file with all this information
+                                HostSSLResultHolderClass tlsResClassObj = new HostSSLResultHolderClass();
+                                tlsResClassObj.port = FDM_PORT;
+                                tlsResClassObj.beforeProtoList = beforeProtos;
+                                tlsResClassObj.afterProtoList = afterProtos;
+                                tlsResClassObj.clusterName = tempCluResObj.cluName;
+                                tlsResClassObj.cipherSuites = cipherAuditOfHosts.get(hostName);
+                                hostSSLconfigResultHolderObj.put(hostName, tlsResClassObj);
+
+                            }
+                            resultObj.addLine("------------", "----", "--------------------", "-------------------");
+                            resultObj.print();
+                        }
+                    } else {
+                        System.out.println("~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~");
+                        System.out.println(" SSL CONFIGURATION RESULT FOR CLUSTER: " + clusterName);
+                        System.out.println("~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~");
+                        System.out.println("Protocols to ENABLE (as requested by user) : " + tls_protos_enable + "\n");
+
+                        ResultTablePrinter resultObj = new ResultTablePrinter();
+                        resultObj.addLine("------------", "----", "--------------------", "-------------------");
+                        resultObj.addLine("HOST NAME   ", "PORT", "Before SSL/TLS Protocols", "After SSL/TLS Protocols");
+                        resultObj.addLine("------------", "----", "--------------------", "-------------------");
+
+                        for (OverallResultHolderClass tempAllCluResObj : listOfClustersResultObj) {
+                            if (tempAllCluResObj.cluName.equals(clusterName)) {
+                                for (String hostName : tempAllCluResObj.beforeTLSProtos.keySet()) {
+                                    String beforeProtos = tempAllCluResObj.beforeTLSProtos.get(hostName);
+                                    String afterProtos = null;
+
+                                    if (tempAllCluResObj.afterTLSProtos.containsKey(hostName)) {
+                                        afterProtos = tempAllCluResObj.afterTLSProtos.get(hostName);
+                                    }
+
+                                    if (afterProtos == null) {
+                                        afterProtos = "NULL (Pls check manually)";
+                                    }
+                                    resultObj.addLine(hostName, String.valueOf(FDM_PORT), beforeProtos, afterProtos);
+
+                                }
                             }
                         }
+                        resultObj.addLine("------------", "----", "--------------------", "-------------------");
+                        resultObj.print();
                     }
-                    resultObj.addLine("------------", "----", "--------------------", "-------------------");
-                    resultObj.print();
+                } else {
+                    System.err.println("[ALERT] Before and After Protocol Result Maps are Null!");
+                    System.err.println("[ALERT] Pls check the logs and inventory");
                 }
-            } else {
-                System.err.println("[ALERT] Before and After Protocol Result Maps are Null!");
+
+            } catch (Exception e) {
+                System.err.println("[ALERT] Caught an exception, while printing out SSL Configuration result");
                 System.err.println("[ALERT] Pls check the logs and inventory");
             }
-
-        } catch (Exception e) {
-            System.err.println("[ALERT] Caught an exception, while printing out SSL Configuration result");
-            System.err.println("[ALERT] Pls check the logs and inventory");
         }
     }
 
@@ -1057,16 +1421,16 @@ public class ESXi5xFDMSSLConfigUpdater
      * Restore Cluster settings (as it was before start of the test) and reconfigure HA on hosts
      */
     private void
-    restoreClusterConfiguration(ClusterInfoClassForRestore oriClusterInfoObj)
+    restoreClusterConfiguration(ClusterExecutionContext cluCtx, ClusterInfoClassForRestore oriClusterInfoObj)
     {
         if (oriClusterInfoObj.cluster != null) {
-            String cluName = oriClusterInfoObj.cluster.getName();
+            String cluName = cluCtx.cluName;
             System.out.println("\n* * * * * * * * RESTORE SETTINGS ON CLUSTER : " + cluName + " * * * * * * * *");
 
             try {
-                if (cluAdvOpAdded) {
+                if (cluCtx.cluAdvOpAdded) {
                     System.out.println("SSL Advanced option was added to cluster, revert the change ...");
-                    if (removeClusterAdvOption(oriClusterInfoObj.ccr, oriClusterInfoObj.clusterConfigInfo)) {
+                    if (removeClusterAdvOption(cluCtx, oriClusterInfoObj.ccr, oriClusterInfoObj.clusterConfigInfo)) {
                         // Reconfigure HA on Host, for the cluster related changes to take effect
                         Map<Boolean, List<HostSystem>> reconfigHostsResultMap = reconfigureHAOnCluHosts(
                             oriClusterInfoObj.hosts);
@@ -1088,20 +1452,20 @@ public class ESXi5xFDMSSLConfigUpdater
             }
 
             List<HostSystem> cluHosts = oriClusterInfoObj.hosts;
-            String[] protosToRevertStrArr = beforeTLSProtosOfCluHosts.get(cluHosts.get(0).getName())
+            String[] protosToRevertStrArr = cluCtx.beforeTLSProtos.get(inventory.nameOf(cluHosts.get(0)))
                 .replaceAll("[\\[\\]]", "").split(",");
             List<String> protosToRevert = new ArrayList<String>();
             for (String tempProto : protosToRevertStrArr) {
                 protosToRevert.add(tempProto.trim());
             }
 
-            verifySSLProtoPostReconfig(oriClusterInfoObj.hosts, protosToRevert);
+            verifySSLProtoPostReconfig(cluCtx, protosToRevert);
             OverallResultHolderClass clusterResultHolderObj = new OverallResultHolderClass();
             // populate the result holder object and class
-            clusterResultHolderObj.cluName = oriClusterInfoObj.cluster.getName();
-            clusterResultHolderObj.beforeTLSProtos = beforeTLSProtosOfCluHosts;
-            clusterResultHolderObj.afterTLSProtos = afterTLSProtosOfCluHosts;
-            listOfClustersResultObj.add(clusterResultHolderObj);
+            clusterResultHolderObj.cluName = cluCtx.cluName;
+            clusterResultHolderObj.beforeTLSProtos = cluCtx.beforeTLSProtos;
+            clusterResultHolderObj.afterTLSProtos = cluCtx.afterTLSProtos;
+            clusterResults.add(clusterResultHolderObj);
         } else {
             System.out.println(
                 "There is nothing to cleanup, as Cluster information is null. Probably we did not configure anything at all on Cluster");
@@ -1111,24 +1475,26 @@ public class ESXi5xFDMSSLConfigUpdater
     /**
      * Security Protocol Scanner
      */
-    private List<String> securityProtocolScanner(String host, int port) {
-        List<String> secProtocolList = null;
+    private List<String> securityProtocolScanner(String host, int port) throws TestSSLServer.ScanTimeoutException {
+        List<String> secProtocolList = scanResultCache.get(host, port);
+        if (secProtocolList != null) {
+            System.out.println("[" + host + "] Host not reconfigured since last scan, using scanned protocols");
+            return secProtocolList;
+        }
 
         try {
-            List<String> tempSecProtoList = TestSSLServer.SecurityProtoScanner(host, port);
-
-            /*
-             * Convert the strings according to ESXi side implementation of
-             * protocol strings All protocols are in small cases AND TSLv1.0 is
-             * used as "tlsv1"
-             */
-            secProtocolList = new ArrayList<String>();
-            for (String tempProtocol : tempSecProtoList) {
-                if (tempProtocol.equals(TESTSSLSERVER_PROTO_TLS10)) {
-                    secProtocolList.add(PROTO_TLS10);
-                } else {
-                    secProtocolList.add(tempProtocol.toLowerCase());
-                }
+            secProtocolList = toESXiProtocols(fdmScanner.scan(host, port));
+            scanResultCache.put(host, port, secProtocolList);
+        } catch (TestSSLServer.ScanTimeoutException ste) {
+            // Not the same as an unsupported protocol, let the caller decide
+            throw ste;
+        } catch (InterruptedIOException iioe) {
+            if (iioe instanceof SocketTimeoutException) {
+                System.err.println(
+                    "[TestSSLServer Scanner] Caught exception while running scanner: " + iioe.getMessage());
+            } else {
+                // Scan cancelled, e.g. once the cluster check already found hosts in different states
+                System.out.println("[" + host + "] Scan cancelled");
             }
         } catch (Exception e) {
             System.err.println("[TestSSLServer Scanner] Caught exception while running scanner: " + e.getMessage());
@@ -1137,6 +1503,115 @@ public class ESXi5xFDMSSLConfigUpdater
         return secProtocolList;
     }
 
+    /**
+     * Convert the strings according to ESXi side implementation of protocol strings
+     * All protocols are in small cases AND TSLv1.0 is used as "tlsv1"
+     */
+    private List<String>
+    toESXiProtocols(List<String> scannedProtocols)
+    {
+        List<String> secProtocolList = new ArrayList<String>();
+        for (String tempProtocol : scannedProtocols) {
+            if (tempProtocol.equals(TESTSSLSERVER_PROTO_TLS10)) {
+                secProtocolList.add(PROTO_TLS10);
+            } else {
+                secProtocolList.add(tempProtocol.toLowerCase());
+            }
+        }
+        return secProtocolList;
+    }
+
+    /**
+     * Sweep the FDM port of the hosts of all clusters at once, with the non-blocking scan engine,
+     * and keep the results in the scan cache; the pre-check of each cluster then reads them from
+     * there. Hosts whose scan timed out or found no SSL/TLS server are not cached, and get scanned
+     * again on their own by the pre-check
+     */
+    private void
+    prescanFDMPorts()
+    {
+        Set<String> hostNames = new LinkedHashSet<String>();
+        for (List<HostSystem> tempCluHosts : allClusterNHostsMap.values()) {
+            for (HostSystem tempHost : tempCluHosts) {
+                hostNames.add(inventory.nameOf(tempHost));
+            }
+        }
+        if (hostNames.isEmpty()) {
+            return;
+        }
+
+        System.out.println("Scan protocols on FDM port of " + hostNames.size() + " clustered host(s) ...");
+        try {
+            SSLScanEngine scanEngine = new SSLScanEngine(SSLScanEngine.DEFAULT_SELECTOR_THREADS,
+                SSLScanEngine.DEFAULT_MAX_IN_FLIGHT, TestSSLServer.DEFAULT_MAX_PROBES_PER_ENDPOINT,
+                scanProbeTimeoutMillis, scanHostTimeoutMillis);
+            Map<String, SSLScanEngine.ScanResult> hostResults = scanEngine.scanHosts(hostNames, FDM_PORT);
+            for (Map.Entry<String, SSLScanEngine.ScanResult> tempResult : hostResults.entrySet()) {
+                SSLScanEngine.ScanResult scanResult = tempResult.getValue();
+                if (scanResult.protocols != null && !scanResult.isTimedOut()) {
+                    scanResultCache.put(tempResult.getKey(), FDM_PORT, toESXiProtocols(scanResult.protocols));
+                }
+            }
+        } catch (Exception e) {
+            System.err.println("Caught exception while scanning clustered hosts, they will be scanned cluster by"
+                + " cluster: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Audit the cipher suites accepted on FDM port, of all clustered hosts. Several hosts are
+     * audited at the same time; the connections to each host are capped by the auditor.
+     */
+    private void
+    auditCipherSuitesOfCluHosts(List<HostSystem> hosts)
+    {
+        System.out.println("Audit cipher suites accepted on FDM port of clustered hosts ...");
+        ExecutorService auditPool = Executors.newFixedThreadPool(Math.max(1,
+            Math.min(CIPHER_AUDIT_HOSTS_IN_PARALLEL, hosts.size())));
+        try {
+            List<Callable<Void>> audits = new ArrayList<Callable<Void>>();
+            for (HostSystem tempHost : hosts) {
+                final String hostName = inventory.nameOf(tempHost);
+                audits.add(new Callable<Void>() {
+                    @Override
+                    public Void call()
+                    {
+                        cipherAuditOfHosts.put(hostName, cipherSuiteAuditor(hostName, FDM_PORT));
+                        return null;
+                    }
+                });
+            }
+            auditPool.invokeAll(audits);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            System.err.println("Interrupted while auditing cipher suites of clustered hosts");
+        } finally {
+            auditPool.shutdownNow();
+        }
+    }
+
+    /**
+     * Cipher suite auditor, the result is summarized into a single line
+     */
+    private String
+    cipherSuiteAuditor(String host, int port)
+    {
+        try {
+            TestSSLServer.CipherSuiteAudit audit = TestSSLServer.CipherSuiteAuditor(host, port,
+                TestSSLServer.DEFAULT_MAX_AUDIT_CONNECTIONS_PER_ENDPOINT, scanProbeTimeoutMillis,
+                TestSSLServer.DEFAULT_AUDIT_TIMEOUT_MS);
+            System.out.println("[" + host + "] Cipher suites accepted on port " + port + ": " + audit.toString());
+            return audit.toString();
+        } catch (TestSSLServer.ScanTimeoutException ste) {
+            System.err.println("[" + host + "] Cipher suite audit TIMED OUT, probes not answered: "
+                + ste.getTimedOutProbes());
+            return SCAN_TIMED_OUT;
+        } catch (Exception e) {
+            System.err.println("[" + host + "] Caught exception while auditing cipher suites: " + e.getMessage());
+            return CIPHER_AUDIT_FAILED;
+        }
+    }
+
     /**
      * Check if port is already running with user requested security protocols
      */
@@ -1215,61 +1690,74 @@ public class ESXi5xFDMSSLConfigUpdater
 
     /**
      * All hosts from HA Enabled Cluster
+     *
+     * Clusters and hosts are discovered through a ContainerView on the root folder, with only the
+     * properties needed here fetched in one paged RetrievePropertiesEx call
      */
     private Map<ManagedEntity, List<HostSystem>>
     retrieveAllHAClustersNHosts()
     {
-        Map<ManagedEntity, List<HostSystem>> allClusHostsMap = new HashMap<ManagedEntity, List<HostSystem>>();
+        Map<ManagedEntity, List<HostSystem>> allClusHostsMap = new LinkedHashMap<ManagedEntity, List<HostSystem>>();
 
         try {
-            InventoryNavigator navigator = new InventoryNavigator(si.getRootFolder());
-
-            ManagedEntity[] allClusters = navigator.searchManagedEntities(CLUSTER_COMPRES_MOR_TYPE);
+            PropertySpec cluPropSpec = new PropertySpec();
+            cluPropSpec.setType(InventoryModel.CLUSTER_MOR_TYPE);
+            cluPropSpec.setPathSet(InventoryModel.CLUSTER_PROPERTIES);
+
+            PropertySpec hostPropSpec = new PropertySpec();
+            hostPropSpec.setType(InventoryModel.HOST_MOR_TYPE);
+            hostPropSpec.setPathSet(InventoryModel.HOST_PROPERTIES);
+
+            List<ObjectContent> inventoryObjs = retrieveInventoryProperties(
+                new String[] { InventoryModel.CLUSTER_MOR_TYPE, InventoryModel.HOST_MOR_TYPE },
+                new PropertySpec[] { cluPropSpec, hostPropSpec });
+            inventory.update(inventoryObjs);
+
+            List<ManagedObjectReference> allClusters = new ArrayList<ManagedObjectReference>();
+            for (ObjectContent tempObj : inventoryObjs) {
+                if (InventoryModel.CLUSTER_MOR_TYPE.equals(tempObj.getObj().getType())) {
+                    allClusters.add(tempObj.getObj());
+                }
+            }
 
-            if (allClusters.length > 0) {
+            if (allClusters.size() > 0) {
                 System.out.println("Found Clusters in inventory. Check and retrieve HA Enabled Cluster");
 
                 /*
                  * Traverse through each Cluster
                  */
-                for (ManagedEntity tempCluME : allClusters) {
-                    ClusterComputeResource ccr = new ClusterComputeResource(si.getServerConnection(),
-                        tempCluME.getMOR());
+                for (ManagedObjectReference tempCluMor : allClusters) {
+                    InventoryModel.ClusterRecord cluRecord = inventory.getCluster(tempCluMor);
+                    String cluName = cluRecord.getName();
 
                     // Check if HA is enabled on Cluster
-                    ClusterConfigInfo tempCluConfigInfo = ccr.getConfiguration();
-                    ClusterDasConfigInfo fdmConfigInfo = tempCluConfigInfo.getDasConfig();
-
-                    if (fdmConfigInfo != null && fdmConfigInfo.enabled) {
-                        System.out.println("\nHA is enabled on Cluster: " + tempCluME.getName());
+                    if (cluRecord.isHaEnabled()) {
+                        System.out.println("\nHA is enabled on Cluster: " + cluName);
+                        ManagedEntity tempCluME = new ClusterComputeResource(si.getServerConnection(), tempCluMor);
 
                         // retrieve all hosts from the cluster
-                        System.out.println("Retrieve all ESXi hosts from Cluster: " + tempCluME.getName());
-                        HostSystem[] allHosts = ccr.getHosts();
-                        if (allHosts.length > 0) {
+                        System.out.println("Retrieve all ESXi hosts from Cluster: " + cluName);
+                        List<ManagedObjectReference> allHostMors = cluRecord.getHostMors();
+                        if (allHostMors.size() > 0) {
                             System.out.println("Found ESXi host(s). Check for all connected hosts");
                             List<HostSystem> activeHosts = new ArrayList<HostSystem>();
-                            for (ManagedEntity tempHost : allHosts) {
-                                HostSystem tempHostSys = (HostSystem) tempHost;
-                                HostRuntimeInfo hostruntimeInfo = tempHostSys.getRuntime();
-                                if ((hostruntimeInfo.getConnectionState()
-                                    .equals(HostSystemConnectionState.connected))) {
-                                    System.out
-                                        .println("Found ESXi host: " + tempHostSys.getName() + " in connected state");
-                                    activeHosts.add(tempHostSys);
+                            for (ManagedObjectReference tempHostMor : allHostMors) {
+                                InventoryModel.HostRecord hostRecord = inventory.getHost(tempHostMor);
+                                if (hostRecord != null && hostRecord.isConnected()) {
+                                    System.out.println(
+                                        "Found ESXi host: " + hostRecord.getName() + " in connected state");
+                                    activeHosts.add(new HostSystem(si.getServerConnection(), tempHostMor));
                                 }
                             }
                             if (activeHosts.size() > 0) {
                                 allClusHostsMap.put(tempCluME, activeHosts);
                             } else {
                                 System.out.println(
-                                    "Could not find any ESXi host in connected state, for this cluster: "
-                                        + tempCluME.getName());
+                                    "Could not find any ESXi host in connected state, for this cluster: " + cluName);
                             }
                         }
                     } else {
-                        System.out.println(
-                            "\nHA is NOT enabled on Cluster: " + tempCluME.getName() + ", Hence skipping this cluster");
+                        System.out.println("\nHA is NOT enabled on Cluster: " + cluName + ", Hence skipping this cluster");
                     }
                 }
 
@@ -1286,37 +1774,187 @@ public class ESXi5xFDMSSLConfigUpdater
         return allClusHostsMap;
     }
 
+    /**
+     * Retrieve the given properties of all objects of the given types in the inventory. A ContainerView
+     * over the root folder selects the objects, and the result is read page by page
+     */
+    private List<ObjectContent>
+    retrieveInventoryProperties(String[] moTypes, PropertySpec[] propSpecs) throws Exception
+    {
+        List<ObjectContent> allObjs = new ArrayList<ObjectContent>();
+        ContainerView inventoryView = si.getViewManager().createContainerView(si.getRootFolder(), moTypes, true);
+
+        try {
+            TraversalSpec viewTraversal = new TraversalSpec();
+            viewTraversal.setName("traverseView");
+            viewTraversal.setType("ContainerView");
+            viewTraversal.setPath("view");
+            viewTraversal.setSkip(Boolean.FALSE);
+
+            ObjectSpec viewObjSpec = new ObjectSpec();
+            viewObjSpec.setObj(inventoryView.getMOR());
+            viewObjSpec.setSkip(Boolean.TRUE);
+            viewObjSpec.setSelectSet(new SelectionSpec[] { viewTraversal });
+
+            PropertyFilterSpec filterSpec = new PropertyFilterSpec();
+            filterSpec.setObjectSet(new ObjectSpec[] { viewObjSpec });
+            filterSpec.setPropSet(propSpecs);
+
+            RetrieveOptions retrieveOptions = new RetrieveOptions();
+            retrieveOptions.setMaxObjects(INVENTORY_PAGE_SIZE);
+
+            PropertyCollector pc = si.getPropertyCollector();
+            RetrieveResult result = pc.retrievePropertiesEx(new PropertyFilterSpec[] { filterSpec }, retrieveOptions);
+            while (result != null) {
+                if (result.getObjects() != null) {
+                    Collections.addAll(allObjs, result.getObjects());
+                }
+                if (result.getToken() == null) {
+                    break;
+                }
+                result = pc.continueRetrievePropertiesEx(result.getToken());
+            }
+        } finally {
+            try {
+                inventoryView.destroyView();
+            } catch (Exception e) {
+                System.err.println("Caught exception while destroying inventory view");
+            }
+        }
+
+        return allObjs;
+    }
+
+    /**
+     * Read again the properties of the given hosts into the inventory model, in one property
+     * retrieval. Used once the tool changed something on the hosts. If the retrieval fails, the
+     * records are dropped, so that stale values are not relied upon; the values are then read
+     * from the server host by host when needed (see InventoryModel.connectionStateOf)
+     */
+    private void
+    refreshHostRecords(Collection<HostSystem> hosts)
+    {
+        if (hosts.isEmpty()) {
+            return;
+        }
+        try {
+            List<ObjectSpec> hostObjSpecs = new ArrayList<ObjectSpec>();
+            for (HostSystem tempHostSys : hosts) {
+                ObjectSpec hostObjSpec = new ObjectSpec();
+                hostObjSpec.setObj(tempHostSys.getMOR());
+                hostObjSpec.setSkip(Boolean.FALSE);
+                hostObjSpecs.add(hostObjSpec);
+            }
+
+            PropertySpec hostPropSpec = new PropertySpec();
+            hostPropSpec.setType(InventoryModel.HOST_MOR_TYPE);
+            hostPropSpec.setPathSet(InventoryModel.HOST_PROPERTIES);
+
+            PropertyFilterSpec filterSpec = new PropertyFilterSpec();
+            filterSpec.setObjectSet(hostObjSpecs.toArray(new ObjectSpec[hostObjSpecs.size()]));
+            filterSpec.setPropSet(new PropertySpec[] { hostPropSpec });
+
+            RetrieveOptions retrieveOptions = new RetrieveOptions();
+            retrieveOptions.setMaxObjects(INVENTORY_PAGE_SIZE);
+
+            List<ObjectContent> hostObjs = new ArrayList<ObjectContent>();
+            PropertyCollector pc = si.getPropertyCollector();
+            RetrieveResult result = pc.retrievePropertiesEx(new PropertyFilterSpec[] { filterSpec }, retrieveOptions);
+            while (result != null) {
+                if (result.getObjects() != null) {
+                    Collections.addAll(hostObjs, result.getObjects());
+                }
+                if (result.getToken() == null) {
+                    break;
+                }
+                result = pc.continueRetrievePropertiesEx(result.getToken());
+            }
+            inventory.update(hostObjs);
+        } catch (Exception e) {
+            System.err.println("Caught exception while refreshing hosts information, it will be read on demand");
+            for (HostSystem tempHostSys : hosts) {
+                inventory.invalidate(tempHostSys);
+            }
+        }
+    }
+
     /**
      * Check if requested version of SSL protocols are already enabled and running of FDM Port
      *
      * @throws Exception
      */
     private boolean
-    checkSSLProtocols(List<HostSystem> hosts, boolean beforeConfig) throws Exception
+    checkSSLProtocols(ClusterExecutionContext cluCtx, boolean beforeConfig) throws Exception
     {
+        List<HostSystem> hosts = cluCtx.hosts;
         int hostsNeedReconfigCounter = 0;
         int hostsAlreadyConfiguredCounter = 0;
 
-        for (HostSystem tempHost : hosts) {
-            try {
-                System.out.println("[" + tempHost.getName() + "] Running protocol scanner on host");
-                List<String> currProtos = securityProtocolScanner(tempHost.getName(), FDM_PORT);
-                beforeTLSProtosOfCluHosts.put(tempHost.getName(), currProtos.toString());
+        /*
+         * Scan all hosts at once, with a bounded pool. Results are looked at in completion order, so
+         * that the first two hosts found in different states end the check, without waiting for
+         * the rest of the cluster.
+         */
+        ExecutorService scanPool = Executors.newFixedThreadPool(Math.max(1,
+            Math.min(PRECHECK_SCANS_IN_PARALLEL, hosts.size())));
+        CompletionService<List<String>> scanCompletion = new ExecutorCompletionService<List<String>>(scanPool);
+        Map<Future<List<String>>, String> hostOfScan = new HashMap<Future<List<String>>, String>();
+        try {
+            for (HostSystem tempHost : hosts) {
+                final String hostName = inventory.nameOf(tempHost);
+                System.out.println("[" + hostName + "] Running protocol scanner on host");
+                hostOfScan.put(scanCompletion.submit(new Callable<List<String>>() {
+                    @Override
+                    public List<String> call() throws Exception
+                    {
+                        return securityProtocolScanner(hostName, FDM_PORT);
+                    }
+                }), hostName);
+            }
+
+            for (int i = 0; i < hosts.size(); i++) {
+                Future<List<String>> scanned = scanCompletion.take();
+                String hostName = hostOfScan.get(scanned);
+                List<String> currProtos = null;
+                try {
+                    currProtos = scanned.get();
+                } catch (ExecutionException ee) {
+                    if (ee.getCause() instanceof TestSSLServer.ScanTimeoutException) {
+                        TestSSLServer.ScanTimeoutException ste = (TestSSLServer.ScanTimeoutException) ee.getCause();
+                        cluCtx.beforeTLSProtos.put(hostName, SCAN_TIMED_OUT);
+                        System.err.println("[" + hostName + "] Protocol scan TIMED OUT, probes not answered: "
+                            + ste.getTimedOutProbes() + ". Cannot determine the protocols enabled on host");
+                        throw ste;
+                    }
+                }
+
+                Boolean reqdProtosEnabled = this.secProtoChecker(currProtos, this.secProtosToEnable);
+                if (reqdProtosEnabled == null) {
+                    System.err.println("[" + hostName + "] Caught Exception while scanning for SSL protocols");
+                    break;
+                }
+                cluCtx.beforeTLSProtos.put(hostName, currProtos.toString());
 
-                if (!this.secProtoChecker(currProtos, this.secProtosToEnable)) {
-                    System.out.println("[" + tempHost.getName() + "] Requested protocols NEED to be enabled");
+                if (!reqdProtosEnabled) {
+                    System.out.println("[" + hostName + "] Requested protocols NEED to be enabled");
                     ++hostsNeedReconfigCounter;
                 } else {
-                    System.out.println("[" + tempHost.getName() + "] Requested protocols are already enabled");
+                    System.out.println("[" + hostName + "] Requested protocols are already enabled");
                     ++hostsAlreadyConfiguredCounter;
                 }
                 System.out.println(
-                    "[" + tempHost.getName() + "] List of security protocols currenty enabled (BEFORE CHANGE): "
+                    "[" + hostName + "] List of security protocols currenty enabled (BEFORE CHANGE): "
                         + currProtos.toString());
-            } catch (Exception e) {
-                System.err.println("[" + tempHost.getName() + "] Caught Exception while scanning for SSL protocols");
-                break;
+
+                if (hostsNeedReconfigCounter > 0 && hostsAlreadyConfiguredCounter > 0) {
+                    System.err.println("Clustered hosts found with different security protocols, skip scanning"
+                        + " the remaining hosts");
+                    break;
+                }
             }
+        } finally {
+            // Scans not started yet are dropped; running ones end within their time budget
+            scanPool.shutdownNow();
         }
 
         if (hostsAlreadyConfiguredCounter == hosts.size()) {
@@ -1337,30 +1975,36 @@ public class ESXi5xFDMSSLConfigUpdater
      * Check if SSL protocols are found enabled on FDM Port, after cluster/host reconfigured
      */
     private boolean
-    verifySSLProtoPostReconfig(List<HostSystem> hosts, List<String> protosToEnable)
+    verifySSLProtoPostReconfig(ClusterExecutionContext cluCtx, List<String> protosToEnable)
     {
         Boolean reqdProtosRunning = null;
         int hostsConfFailureCounter = 0;
 
-        for (HostSystem tempHost : hosts) {
+        for (HostSystem tempHost : cluCtx.hosts) {
+            String hostName = inventory.nameOf(tempHost);
             try {
                 System.out.println(
-                    "[" + tempHost.getName() + "] Perform Post validation to check if"
+                    "[" + hostName + "] Perform Post validation to check if"
                         + " user expected protocols are indeed persisted ...");
-                List<String> currProtos = securityProtocolScanner(tempHost.getName(), FDM_PORT);
-                afterTLSProtosOfCluHosts.put(tempHost.getName(), currProtos.toString());
+                List<String> currProtos = securityProtocolScanner(hostName, FDM_PORT);
+                cluCtx.afterTLSProtos.put(hostName, currProtos.toString());
                 if (this.secProtoListPostValidater(currProtos, protosToEnable)) {
                     System.out.println(
-                        "[" + tempHost.getName() + "] List of security protocols currenty enabled (AFTER CHANGE): "
+                        "[" + hostName + "] List of security protocols currenty enabled (AFTER CHANGE): "
                             + currProtos.toString());
                 } else {
                     ++hostsConfFailureCounter;
                 }
+            } catch (TestSSLServer.ScanTimeoutException ste) {
+                cluCtx.afterTLSProtos.put(hostName, SCAN_TIMED_OUT);
+                System.err.println("[" + hostName + "] Protocol scan TIMED OUT, probes not answered: "
+                    + ste.getTimedOutProbes());
+                ++hostsConfFailureCounter;
             } catch (Exception e) {
                 System.err.println(
-                    "[" + tempHost.getName()
+                    "[" + hostName
                         + "] Caught Exception while scanning for existing SSL versions on Clustered host: "
-                        + tempHost.getName());
+                        + hostName);
                 reqdProtosRunning = Boolean.FALSE;
             }
         }
@@ -1376,16 +2020,16 @@ public class ESXi5xFDMSSLConfigUpdater
      * Add advanced option to disable/enable SSL protocol
      */
     private boolean
-    updateClusterWithSSLProtocols(ClusterInfoClassForRestore clusterInfoObj)
+    updateClusterWithSSLProtocols(ClusterExecutionContext cluCtx, ClusterInfoClassForRestore clusterInfoObj)
     {
         boolean reconfigSuccess = false;
 
         ManagedEntity haCluster = clusterInfoObj.cluster;
         List<HostSystem> cluHosts = clusterInfoObj.hosts;
-        String cluName = haCluster.getName();
+        String cluName = inventory.nameOf(haCluster);
 
         try {
-            if (reconfigClusterWithAdvOption(clusterInfoObj.ccr, clusterInfoObj.clusterConfigInfo)) {
+            if (reconfigClusterWithAdvOption(cluCtx, clusterInfoObj.ccr, clusterInfoObj.clusterConfigInfo)) {
                 System.out.println("Successfully added advanced option: \"" + HA_SSL_CONFIG_OPTION
                     + "\"  with value: \"" + HA_SSL_OP_VAL + "\" to Cluster: " + cluName);
 
@@ -1415,7 +2059,8 @@ public class ESXi5xFDMSSLConfigUpdater
      * Add advanced option to disable/enable SSL protocol
      */
     private boolean
-    reconfigClusterWithAdvOption(ClusterComputeResource haCcr, ClusterConfigInfoEx oriCluConfigInfo)
+    reconfigClusterWithAdvOption(ClusterExecutionContext cluCtx, ClusterComputeResource haCcr,
+        ClusterConfigInfoEx oriCluConfigInfo)
     {
         boolean reconfigSuccess = false;
         ClusterConfigSpecEx newSpec = new ClusterConfigSpecEx();
@@ -1480,7 +2125,7 @@ public class ESXi5xFDMSSLConfigUpdater
                     } else if (taskState.equals(TaskInfoState.success)) {
                         System.out.println("Reconfigure Cluster task succeeded");
                         reconfigSuccess = true;
-                        cluAdvOpAdded = true;
+                        cluCtx.cluAdvOpAdded = true;
                         break;
                     } else if (taskState.equals(TaskInfoState.error)) {
                         System.out.println("Reconfigure Cluster task Failed");
@@ -1501,7 +2146,8 @@ public class ESXi5xFDMSSLConfigUpdater
      * Add advanced option to disable/enable SSL protocol
      */
     private boolean
-    removeClusterAdvOption(ClusterComputeResource haCcr, ClusterConfigInfoEx oriCluConfigInfo)
+    removeClusterAdvOption(ClusterExecutionContext cluCtx, ClusterComputeResource haCcr,
+        ClusterConfigInfoEx oriCluConfigInfo)
     {
         boolean reconfigSuccess = false;
         ClusterConfigSpecEx newSpec = new ClusterConfigSpecEx();
@@ -1587,7 +2233,7 @@ public class ESXi5xFDMSSLConfigUpdater
                 } else if (taskState.equals(TaskInfoState.success)) {
                     System.out.println("Reconfigure Cluster task succeeded");
                     reconfigSuccess = true;
-                    cluAdvOpAdded = true;
+                    cluCtx.cluAdvOpAdded = true;
                     break;
                 } else if (taskState.equals(TaskInfoState.error)) {
                     System.out.println("Reconfigure Cluster task Failed");
@@ -1603,86 +2249,72 @@ public class ESXi5xFDMSSLConfigUpdater
         return reconfigSuccess;
     }
 
-    /**
-     * Class to handle Host Reconfig HA tasks in threaded fashion
-     */
-    private class ThreadReconfigHA extends Thread
-    {
-        private static final int FDM_RECONFIG_TIMEOUT = 600; // 10 Minutes
-        private static final int LOOP_DELAY = 20; // 20 seconds sleep for each iteration
-        HostSystem hostSys;
-        boolean isHostReconfigured = false;
-
-        ThreadReconfigHA(HostSystem hostSystem) {
-            hostSys = hostSystem;
-        }
-
-        @Override
-        public void
-        run()
-        {
-            String hostName = hostSys.getName();
-            System.out.println("[" + hostName + "] Trigger Reconfig HA operation on host ...");
-            try {
-                Task reconfigHATask = hostSys.reconfigureHostForDAS();
-
-                // Monitor the task status
-                int count = FDM_RECONFIG_TIMEOUT / LOOP_DELAY; // 450 seconds timeout for HA Reconfig task
-                while (count > 0) {
-                    TaskInfoState reconfigHaTaskState = reconfigHATask.getTaskInfo().getState();
-                    if (reconfigHaTaskState.equals(TaskInfoState.queued)
-                        || reconfigHaTaskState.equals(TaskInfoState.running)) {
-                        System.out.println(
-                            "[" + hostName
-                                + "] Reconfig HA task on host is still running, wait for the task to complete");
-                        Thread.sleep(1000 * LOOP_DELAY);
-                        --count;
-                    } else if (reconfigHaTaskState.equals(TaskInfoState.success)) {
-                        System.out.println("[" + hostName + "] Reconfig HA on Host task succeeded");
-                        isHostReconfigured = true;
-                        break;
-                    } else if (reconfigHaTaskState.equals(TaskInfoState.error)) {
-                        System.out.println("[" + hostName + "] Reconfig HA on Host task FAILED");
-                        break;
-                    }
-                }
-
-            } catch (Exception e) {
-                System.err.println("[" + hostName + "] Caught exception while reconfiguring HA on host");
-            }
-
-        }
-    }
-
     /**
      * Reconfigure HA on all ESXi hosts
+     *
+     * All Reconfig HA tasks are triggered up front and watched together through a single
+     * PropertyCollector filter, so every host is reported as soon as its task completes.
      */
     private Map<Boolean, List<HostSystem>>
     reconfigureHAOnCluHosts(List<HostSystem> allHostSys)
     {
         Boolean allHostsConfigured = false;
-        List<ThreadReconfigHA> allHAThreadObj = new ArrayList<ThreadReconfigHA>();
         List<HostSystem> listOfHaReconfigFailedHosts = new ArrayList<HostSystem>();
         int reconfigSuccessHostCnt = 0;
+        Map<HostSystem, String> hostNames = new LinkedHashMap<HostSystem, String>();
+        Map<String, Task> reconfigHATasks = new LinkedHashMap<String, Task>();
+        Map<String, TaskInfoState> reconfigHATaskStates = new HashMap<String, TaskInfoState>();
 
         try {
             for (HostSystem tempHostSys : allHostSys) {
-                ThreadReconfigHA reconfigHAThreadObj = new ThreadReconfigHA(tempHostSys);
-                reconfigHAThreadObj.start();
-                allHAThreadObj.add(reconfigHAThreadObj);
-            }
-
-            // Now wait for all threads to complete
-            for (ThreadReconfigHA tempReconfigThreadObj : allHAThreadObj) {
-                tempReconfigThreadObj.join();
-                if (tempReconfigThreadObj.isHostReconfigured) {
-                    ++reconfigSuccessHostCnt;
-                } else {
-                    listOfHaReconfigFailedHosts.add(tempReconfigThreadObj.hostSys);
+                String hostName = inventory.nameOf(tempHostSys);
+                hostNames.put(tempHostSys, hostName);
+                System.out.println("[" + hostName + "] Trigger Reconfig HA operation on host ...");
+                try {
+                    reconfigHATasks.put(hostName, tempHostSys.reconfigureHostForDAS());
+                } catch (Exception e) {
+                    System.err.println("[" + hostName + "] Caught exception while reconfiguring HA on host");
                 }
             }
+
+            // Monitor the tasks status
+            TaskCompletionWatcher reconfigHATaskWatcher = new TaskCompletionWatcher(si);
+            reconfigHATaskStates = reconfigHATaskWatcher.waitForTasks(reconfigHATasks, FDM_RECONFIG_TIMEOUT,
+                new TaskCompletionWatcher.TaskCompletionListener() {
+                    @Override
+                    public void
+                    taskCompleted(String hostName, TaskInfoState state, LocalizedMethodFault error)
+                    {
+                        if (state.equals(TaskInfoState.success)) {
+                            System.out.println("[" + hostName + "] Reconfig HA on Host task succeeded");
+                        } else {
+                            System.out.println("[" + hostName + "] Reconfig HA on Host task FAILED"
+                                + ((error != null) ? (" : " + error.getLocalizedMessage()) : ""));
+                        }
+                    }
+                });
         } catch (Exception e) {
             System.err.println("Caught exception while reconfiguring HA on clustered hosts");
+        } finally {
+            // FDM on the hosts may now run with a different SSL configuration, whatever the task outcome
+            for (String hostName : hostNames.values()) {
+                scanResultCache.invalidate(hostName, FDM_PORT);
+            }
+            refreshHostRecords(allHostSys);
+        }
+
+        for (HostSystem tempHostSys : allHostSys) {
+            String hostName = hostNames.get(tempHostSys);
+            if (TaskInfoState.success.equals(reconfigHATaskStates.get(hostName))) {
+                ++reconfigSuccessHostCnt;
+            } else {
+                if (hostName != null && reconfigHATasks.containsKey(hostName)
+                    && !TaskInfoState.error.equals(reconfigHATaskStates.get(hostName))) {
+                    System.out.println("[" + hostName + "] Reconfig HA task on host did not complete within "
+                        + FDM_RECONFIG_TIMEOUT + " seconds");
+                }
+                listOfHaReconfigFailedHosts.add(tempHostSys);
+            }
         }
 
         // Check if all reconfig HA operation on hosts gone through fine
@@ -1697,14 +2329,14 @@ public class ESXi5xFDMSSLConfigUpdater
     }
 
     /**
-     * Class to hold a particular Host's SSH connection information and whether SSH service on
-     * host was started. If SSH service is started by utility, it'll be restored to its original state.
+     * Class to hold a particular Host's SSH information and whether SSH service on host was started.
+     * If SSH service is started by utility, it'll be restored to its original state.
      */
     public class HostSSHInfoClass
     {
         String hostName;
         HostSystem hostSys;
-        Connection hostSshConnObj;
+        HostServiceSystem serviceSystem;
         boolean restoreSSHServiceState;
     }
 
@@ -1730,6 +2362,7 @@ public class ESXi5xFDMSSLConfigUpdater
         String beforeProtoList;
         String afterProtoList;
         String clusterName;
+        String cipherSuites; // Cipher suite audit summary, null when not audited
     }
 
     class OverallResultHolderClass
@@ -1738,4 +2371,52 @@ public class ESXi5xFDMSSLConfigUpdater
         Map<String, String> beforeTLSProtos;
         Map<String, String> afterTLSProtos;
     }
+
+    /**
+     * Class to hold the state of a single cluster while its configuration is applied, verified and
+     * restored. Each cluster has its own context, so that clusters can be configured in parallel
+     */
+    class ClusterExecutionContext
+    {
+        ManagedEntity cluster;
+        String cluName;
+        List<HostSystem> hosts;
+        boolean cluAdvOpAdded;
+
+        // Map <Hostname, TLS protocols in string>
+        Map<String, String> beforeTLSProtos = new HashMap<String, String>();
+        Map<String, String> afterTLSProtos = new HashMap<String, String>();
+
+        ClusterExecutionContext(ManagedEntity cluster, List<HostSystem> hosts) {
+            this.cluster = cluster;
+            this.cluName = inventory.nameOf(cluster);
+            this.hosts = hosts;
+        }
+    }
+
+    /**
+     * Class to collect the result of all clusters, fed by clusters completing in parallel
+     */
+    class ClusterResultAggregator
+    {
+        private final List<OverallResultHolderClass> clusterResultObjs = new ArrayList<OverallResultHolderClass>();
+
+        synchronized void
+        add(OverallResultHolderClass clusterResultHolderObj)
+        {
+            clusterResultObjs.add(clusterResultHolderObj);
+        }
+
+        synchronized int
+        size()
+        {
+            return clusterResultObjs.size();
+        }
+
+        synchronized List<OverallResultHolderClass>
+        snapshot()
+        {
+            return new ArrayList<OverallResultHolderClass>(clusterResultObjs);
+        }
+    }
 }
\ No newline at end of file
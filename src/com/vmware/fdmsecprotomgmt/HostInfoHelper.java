@@ -11,7 +11,9 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import com.vmware.fdmsecprotomgmt.ESXi5xFDMSSLConfigUpdater.HostSSLResultHolderClass;
 import com.vmware.vim25.mo.HostSystem;
@@ -108,24 +110,85 @@ public class HostInfoHelper
         String hostVer;
         String username;
         String password;
+        String encryptedPassword; // Set until the password is decrypted
         HostSystem hostSys;
     }
 
     /**
-     * Method to read the hosts information file and push them into array of
-     * HostsInfoHolderClass objects
+     * Hosts information file, indexed by host name. The file is read once; encrypted passwords are
+     * decrypted only when a host's entry is actually used, with the key asked from user only once
+     */
+    public static class HostsInfoIndex
+    {
+        private final Map<String, HostsInfoHolderClass> hostsByName = new LinkedHashMap<String, HostsInfoHolderClass>();
+        private String key;
+
+        public HostsInfoHolderClass
+        get(String hostName)
+        {
+            return hostsByName.get(hostName);
+        }
+
+        public int
+        size()
+        {
+            return hostsByName.size();
+        }
+
+        /**
+         * Make sure the password of the host entry is available in plain text
+         *
+         * @return false, if the password could not be decrypted
+         */
+        public synchronized boolean
+        resolvePassword(HostsInfoHolderClass obj)
+        {
+            if (obj.encryptedPassword == null) {
+                return obj.password != null;
+            }
+
+            System.out.println("ESXi host- " + obj.hostName + " password has been encrypted. Trying to decrypt ...");
+            if (key == null) {
+                /*
+                 * Only for the first time request user to provide information to decrypt the password
+                 * for rest of the iterations, same key can be used for decryption
+                 */
+                List<String> decryptedData = PasswdEncrypter.decryptValueWithUserEnteredKey(obj.encryptedPassword);
+                if (decryptedData != null && decryptedData.size() == 2) {
+                    key = decryptedData.get(0).trim(); // Removing leading or trailing spaces
+                    obj.password = decryptedData.get(1);
+                }
+            } else {
+                String tempDecryptedPwd = PasswdEncrypter.decrypt(key, obj.encryptedPassword);
+                if (tempDecryptedPwd != null) {
+                    System.out.println("Successfully decrypted ESXi password for host: " + obj.hostName);
+                    obj.password = tempDecryptedPwd;
+                }
+            }
+
+            if (obj.password == null) {
+                System.err.println("Skipping ESXi host: " + obj.hostName + ", as we failed to decrypt password");
+                return false;
+            }
+            obj.encryptedPassword = null;
+            return true;
+        }
+    }
+
+    /**
+     * Method to read the hosts information file into an index of HostsInfoHolderClass objects,
+     * without decrypting the passwords
      */
     public static
-    List<HostsInfoHolderClass> readHostsInfoFile(File fileHandle)
+    HostsInfoIndex indexHostsInfoFile(File fileHandle)
     {
-        List<HostsInfoHolderClass> hostsListFromFile = null;
+        HostsInfoIndex hostsIndex = null;
         try {
             FileReader existingFileRdr = new FileReader(fileHandle);
             BufferedReader br = new BufferedReader(existingFileRdr);
             int lineNum = 0;
             String line;
-            String key = null;
-            hostsListFromFile = new ArrayList<HostsInfoHolderClass>();
+            hostsIndex = new HostsInfoIndex();
             while ((line = br.readLine()) != null) {
                 if (lineNum > 0) { // Ignore the header of file
                     String[] hostFields = line.split(",");
@@ -136,52 +199,41 @@ public class HostInfoHelper
 
                     String isPwdEncrypted = hostFields[4].trim();
                     if (isPwdEncrypted.equalsIgnoreCase("yes")) {
-                        System.out.println(
-                            "ESXi host- " + obj.hostName + " password has been encrypted. Trying to decrypt ...");
-                        String encryptedStr = hostFields[3].trim();
-
-                        if (lineNum == 1 || key == null) {
-                            /*
-                             * Only for the first time request user to provide information to decrypt the password
-                             * for rest of the iterations, same key can be used for decryption
-                             */
-                            List<String> decryptedData = PasswdEncrypter.decryptValueWithUserEnteredKey(encryptedStr);
-                            if (decryptedData != null && decryptedData.size() == 2) {
-                                key = decryptedData.get(0);
-                                obj.password = decryptedData.get(1);
-                            } else {
-                                System.err.println(
-                                    "Skipping ESXi host: " + obj.hostName + ", as we failed to decrypt password");
-                                ++lineNum;
-                                continue;
-                            }
-                        } else {
-                            key = key.trim(); // Removing leading or trailing spaces
-                            String tempDecryptedPwd = PasswdEncrypter.decrypt(key, encryptedStr);
-                            if (tempDecryptedPwd != null) {
-                                System.out.println("Successfully decrypted ESXi password for host: " + obj.hostName);
-                                //System.out.println("[TESTED] Password is:" + tempDecryptedPwd);
-                                obj.password = tempDecryptedPwd;
-                            } else {
-                                System.err.println(
-                                    "Skipping ESXi host: " + obj.hostName + ", as we failed to decrypt password");
-                                ++lineNum;
-                                continue;
-                            }
-                        }
-
+                        obj.encryptedPassword = hostFields[3].trim();
                     } else {
                         obj.password = hostFields[3].trim();
                     }
 
-                    hostsListFromFile.add(obj);
+                    hostsIndex.hostsByName.put(obj.hostName, obj);
                 }
                 ++lineNum;
             }
             br.close();
         } catch (Exception e) {
             System.err.println("Caught exception while retrieving hosts information from file");
-            hostsListFromFile = null;
+            hostsIndex = null;
+        }
+
+        return hostsIndex;
+    }
+
+    /**
+     * Method to read the hosts information file and push them into array of
+     * HostsInfoHolderClass objects
+     */
+    public static
+    List<HostsInfoHolderClass> readHostsInfoFile(File fileHandle)
+    {
+        HostsInfoIndex hostsIndex = indexHostsInfoFile(fileHandle);
+        if (hostsIndex == null) {
+            return null;
+        }
+
+        List<HostsInfoHolderClass> hostsListFromFile = new ArrayList<HostsInfoHolderClass>();
+        for (HostsInfoHolderClass obj : hostsIndex.hostsByName.values()) {
+            if (hostsIndex.resolvePassword(obj)) {
+                hostsListFromFile.add(obj);
+            }
         }
 
         return hostsListFromFile;
@@ -232,7 +284,8 @@ public class HostInfoHelper
                 ESXi5xFDMSSLConfigUpdater tempParentClassObj = new ESXi5xFDMSSLConfigUpdater();
                 for (String tempHostName : resultHoldingObj.keySet()) {
                     bw.write("HOST NAME: " + tempHostName + ",\n");
-                    bw.write("CLUSTER NAME," + "SERVICE NAME," + "PORT," + "Before TLS/SSL Protocols," + "After TLS/SSL Protocols\n");
+                    bw.write("CLUSTER NAME," + "SERVICE NAME," + "PORT," + "Before TLS/SSL Protocols," + "After TLS/SSL Protocols,"
+                        + "Cipher Suites (Audit)\n");
 
                     for (HostSSLResultHolderClass tempSSLResultObj : resultHoldingObj.get(tempHostName)) {
                         String cluName = tempSSLResultObj.clusterName;
@@ -240,7 +293,10 @@ public class HostInfoHelper
                         String port = tempSSLResultObj.port.toString();
                         String beforeProtoList = tempSSLResultObj.beforeProtoList.replaceAll(",", " ");
                         String afterProtoList = tempSSLResultObj.afterProtoList.replaceAll(",", " ");
-                        bw.write(cluName + "," + serviceName + "," + port + "," + beforeProtoList + "," + afterProtoList + "\n");
+                        String cipherSuites = tempSSLResultObj.cipherSuites == null ? "NOT AUDITED"
+                            : tempSSLResultObj.cipherSuites.replaceAll(",", " ");
+                        bw.write(cluName + "," + serviceName + "," + port + "," + beforeProtoList + "," + afterProtoList + ","
+                            + cipherSuites + "\n");
                     }
                     bw.write(",\n");
                 }
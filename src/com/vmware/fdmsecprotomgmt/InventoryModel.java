@@ -0,0 +1,369 @@
+package com.vmware.fdmsecprotomgmt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.vmware.vim25.ArrayOfManagedObjectReference;
+import com.vmware.vim25.DynamicProperty;
+import com.vmware.vim25.HostService;
+import com.vmware.vim25.HostServiceInfo;
+import com.vmware.vim25.HostSystemConnectionState;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.mo.HostSystem;
+import com.vmware.vim25.mo.ManagedEntity;
+
+/**
+ * Local model of the clusters and hosts in the inventory, keyed by MOR id.
+ *
+ * vijava managed objects go to the server on every property getter. The model is filled once
+ * from a bulk property retrieval, and the rest of the run reads names, versions and
+ * connection states from here. Host records are read again in bulk where the tool changes the
+ * hosts (after HA reconfigure, after a failed SSH service start). A value is fetched from the
+ * server one by one (see nameOf, connectionStateOf) only when the object was not part of a
+ * retrieval, or after its record was invalidated because it could not be read again.
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+public class InventoryModel
+{
+    public static final String CLUSTER_MOR_TYPE = "ClusterComputeResource";
+    public static final String HOST_MOR_TYPE = "HostSystem";
+
+    // Properties retrieved for each cluster and host
+    public static final String PROP_NAME = "name";
+    public static final String PROP_CLUSTER_HOSTS = "host";
+    public static final String PROP_CLUSTER_HA_ENABLED = "configuration.dasConfig.enabled";
+    public static final String PROP_HOST_CONNECTION_STATE = "runtime.connectionState";
+    public static final String PROP_HOST_VERSION = "config.product.version";
+    public static final String PROP_HOST_BUILD = "config.product.build";
+    public static final String PROP_HOST_SERVICES = "config.service";
+    public static final String PROP_HOST_SERVICE_SYSTEM = "configManager.serviceSystem";
+
+    public static final String[] CLUSTER_PROPERTIES = new String[] { PROP_NAME, PROP_CLUSTER_HOSTS,
+        PROP_CLUSTER_HA_ENABLED };
+    public static final String[] HOST_PROPERTIES = new String[] { PROP_NAME, PROP_HOST_CONNECTION_STATE,
+        PROP_HOST_VERSION, PROP_HOST_BUILD, PROP_HOST_SERVICES, PROP_HOST_SERVICE_SYSTEM };
+
+    private final ConcurrentMap<String, HostRecord> hosts = new ConcurrentHashMap<String, HostRecord>();
+    private final ConcurrentMap<String, ClusterRecord> clusters = new ConcurrentHashMap<String, ClusterRecord>();
+
+    /**
+     * Cached properties of a host
+     */
+    public static class HostRecord
+    {
+        final String morId;
+        volatile String name;
+        volatile String version;
+        volatile String build;
+        volatile HostSystemConnectionState connectionState;
+        volatile ManagedObjectReference serviceSystemMor;
+        // Running state of the host services, by service key; null until read
+        volatile Map<String, Boolean> servicesRunning;
+
+        HostRecord(String morId)
+        {
+            this.morId = morId;
+        }
+
+        public String
+        getMorId()
+        {
+            return morId;
+        }
+
+        public String
+        getName()
+        {
+            return name;
+        }
+
+        public String
+        getVersion()
+        {
+            return version;
+        }
+
+        public String
+        getBuild()
+        {
+            return build;
+        }
+
+        public HostSystemConnectionState
+        getConnectionState()
+        {
+            return connectionState;
+        }
+
+        public boolean
+        isConnected()
+        {
+            return HostSystemConnectionState.connected.equals(connectionState);
+        }
+
+        public ManagedObjectReference
+        getServiceSystemMor()
+        {
+            return serviceSystemMor;
+        }
+
+        /**
+         * Running state of the service with the given key
+         *
+         * @return null, if services of the host were not read or the service is not found
+         */
+        public Boolean
+        isServiceRunning(String serviceKey)
+        {
+            Map<String, Boolean> services = servicesRunning;
+            if (services == null) {
+                return null;
+            }
+            for (Map.Entry<String, Boolean> tempService : services.entrySet()) {
+                if (tempService.getKey().equalsIgnoreCase(serviceKey)) {
+                    return tempService.getValue();
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Record the running state of a service, once it is started or stopped
+         */
+        public void
+        setServiceRunning(String serviceKey, boolean running)
+        {
+            Map<String, Boolean> services = servicesRunning;
+            if (services != null) {
+                services.put(serviceKey, running);
+            }
+        }
+    }
+
+    /**
+     * Cached properties of a cluster
+     */
+    public static class ClusterRecord
+    {
+        final String morId;
+        volatile String name;
+        volatile boolean haEnabled;
+        volatile List<ManagedObjectReference> hostMors = Collections.emptyList();
+
+        ClusterRecord(String morId)
+        {
+            this.morId = morId;
+        }
+
+        public String
+        getMorId()
+        {
+            return morId;
+        }
+
+        public String
+        getName()
+        {
+            return name;
+        }
+
+        public boolean
+        isHaEnabled()
+        {
+            return haEnabled;
+        }
+
+        public List<ManagedObjectReference>
+        getHostMors()
+        {
+            return hostMors;
+        }
+    }
+
+    /**
+     * Fill the model from the result of a property retrieval of clusters and hosts
+     */
+    public void
+    update(List<ObjectContent> inventoryObjs)
+    {
+        for (ObjectContent tempObj : inventoryObjs) {
+            ManagedObjectReference mor = tempObj.getObj();
+            if (CLUSTER_MOR_TYPE.equals(mor.getType())) {
+                updateCluster(clusterRecord(mor.getVal()), tempObj.getPropSet());
+            } else if (HOST_MOR_TYPE.equals(mor.getType())) {
+                updateHost(hostRecord(mor.getVal()), tempObj.getPropSet());
+            }
+        }
+    }
+
+    public ClusterRecord
+    getCluster(ManagedObjectReference mor)
+    {
+        return clusters.get(mor.getVal());
+    }
+
+    public HostRecord
+    getHost(ManagedObjectReference mor)
+    {
+        return hosts.get(mor.getVal());
+    }
+
+    /**
+     * Name of a cluster or host. Read from the model, the server is asked only for an unknown entity
+     */
+    public String
+    nameOf(ManagedEntity entity)
+    {
+        String morId = entity.getMOR().getVal();
+        if (HOST_MOR_TYPE.equals(entity.getMOR().getType())) {
+            HostRecord record = hostRecord(morId);
+            if (record.name == null) {
+                record.name = entity.getName();
+            }
+            return record.name;
+        }
+
+        ClusterRecord record = clusterRecord(morId);
+        if (record.name == null) {
+            record.name = entity.getName();
+        }
+        return record.name;
+    }
+
+    /**
+     * Connection state of a host. Read from the model, the server is asked when the host has no
+     * state in the model (not retrieved, or its record was invalidated)
+     */
+    public HostSystemConnectionState
+    connectionStateOf(HostSystem hostSys)
+    {
+        HostRecord record = hostRecord(hostSys.getMOR().getVal());
+        if (record.connectionState == null) {
+            record.connectionState = hostSys.getRuntime().getConnectionState();
+        }
+        return record.connectionState;
+    }
+
+    /**
+     * Drop the cached properties of an entity, when they could not be read again after a change.
+     * getHost / getCluster then return null, and nameOf / connectionStateOf read from the server
+     */
+    public void
+    invalidate(ManagedEntity entity)
+    {
+        hosts.remove(entity.getMOR().getVal());
+        clusters.remove(entity.getMOR().getVal());
+    }
+
+    private HostRecord
+    hostRecord(String morId)
+    {
+        HostRecord record = hosts.get(morId);
+        if (record == null) {
+            HostRecord newRecord = new HostRecord(morId);
+            record = hosts.putIfAbsent(morId, newRecord);
+            if (record == null) {
+                record = newRecord;
+            }
+        }
+        return record;
+    }
+
+    private ClusterRecord
+    clusterRecord(String morId)
+    {
+        ClusterRecord record = clusters.get(morId);
+        if (record == null) {
+            ClusterRecord newRecord = new ClusterRecord(morId);
+            record = clusters.putIfAbsent(morId, newRecord);
+            if (record == null) {
+                record = newRecord;
+            }
+        }
+        return record;
+    }
+
+    private static void
+    updateHost(HostRecord record, DynamicProperty[] props)
+    {
+        if (props == null) {
+            return;
+        }
+        for (DynamicProperty tempProp : props) {
+            if (PROP_NAME.equals(tempProp.getName())) {
+                record.name = (String) tempProp.getVal();
+            } else if (PROP_HOST_CONNECTION_STATE.equals(tempProp.getName())) {
+                record.connectionState = (HostSystemConnectionState) tempProp.getVal();
+            } else if (PROP_HOST_VERSION.equals(tempProp.getName())) {
+                record.version = (String) tempProp.getVal();
+            } else if (PROP_HOST_BUILD.equals(tempProp.getName())) {
+                record.build = (String) tempProp.getVal();
+            } else if (PROP_HOST_SERVICE_SYSTEM.equals(tempProp.getName())) {
+                record.serviceSystemMor = (ManagedObjectReference) tempProp.getVal();
+            } else if (PROP_HOST_SERVICES.equals(tempProp.getName())) {
+                Map<String, Boolean> services = new ConcurrentHashMap<String, Boolean>();
+                HostService[] hostServices = ((HostServiceInfo) tempProp.getVal()).getService();
+                if (hostServices != null) {
+                    for (HostService tempService : hostServices) {
+                        services.put(tempService.getKey(), tempService.isRunning());
+                    }
+                }
+                record.servicesRunning = services;
+            }
+        }
+    }
+
+    private static void
+    updateCluster(ClusterRecord record, DynamicProperty[] props)
+    {
+        if (props == null) {
+            return;
+        }
+        for (DynamicProperty tempProp : props) {
+            if (PROP_NAME.equals(tempProp.getName())) {
+                record.name = (String) tempProp.getVal();
+            } else if (PROP_CLUSTER_HA_ENABLED.equals(tempProp.getName())) {
+                record.haEnabled = Boolean.TRUE.equals(tempProp.getVal());
+            } else if (PROP_CLUSTER_HOSTS.equals(tempProp.getName())) {
+                List<ManagedObjectReference> hostMors = new ArrayList<ManagedObjectReference>();
+                if (tempProp.getVal() instanceof ArrayOfManagedObjectReference) {
+                    ManagedObjectReference[] mors = ((ArrayOfManagedObjectReference) tempProp.getVal())
+                        .getManagedObjectReference();
+                    if (mors != null) {
+                        Collections.addAll(hostMors, mors);
+                    }
+                }
+                record.hostMors = Collections.unmodifiableList(hostMors);
+            }
+        }
+    }
+}
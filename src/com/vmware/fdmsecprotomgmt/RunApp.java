@@ -40,13 +40,23 @@ public class RunApp
     {
         System.out.println("\n~~~~~~~~~~~~~~~~~~~~~~~~~~ SSLv3 CONFIGURATION ~~~~~~~~~~~~~~~~~~~~~~~~~~");
         System.out.println(
-            "Usage: java -jar fdmsecprotomgmt.jar --vsphereip <vCenter Server IP> --username <uname> --password <pwd> --hostsinfofile <pathToHostsListfile> [enablessl] [disablessl]");
+            "Usage: java -jar fdmsecprotomgmt.jar --vsphereip <vCenter Server IP> --username <uname> --password <pwd> --hostsinfofile <pathToHostsListfile> [enablessl] [disablessl]"
+                + " [--scanprobetimeout <secs>] [--scanhosttimeout <secs>] [--clusterparallelism <N>] [cipheraudit] [forcesshqual]"
+                + " [--sshconnecttimeout <secs>] [--sshkextimeout <secs>]");
         System.out.println("\nExample : To enable SSLv3 on One or More vSphere HA enabled Cluster & its ESXi hosts");
         System.out.println(
             "\"java -jar fdmsecprotomgmt.jar --vsphereip 10.1.2.3 --username adminUser --password dummy --hostsinfofile c:\\SecurityProtoMgmt\\clusteresxihosts.csv enablessl\"");
         System.out.println("\nExample : To disable SSLv3 on One or More vSphere HA enabled Cluster & its ESXi hosts");
         System.out.println(
             "\"java -jar fdmsecprotomgmt.jar --vsphereip 10.1.2.3 --username adminUser --password dummy --hostsinfofile c:\\SecurityProtoMgmt\\clusteresxihosts.csv disablessl\"");
+        System.out.println("\nAdd 'cipheraudit' to also audit the cipher suites accepted on vSphere HA port of clustered"
+            + " hosts, once the configuration is applied. The audit is written into the result file");
+        System.out.println("\nUse '--clusterparallelism <N>' to apply the configuration on up to N clusters at the same"
+            + " time (default: 1, one cluster after another)");
+        System.out.println("\nESXi versions are read through vSphere API, SSH is used only when that is not conclusive."
+            + " Add 'forcesshqual' to always check the version over SSH");
+        System.out.println("\nUse '--sshconnecttimeout <secs>' and '--sshkextimeout <secs>' to bound the TCP connect"
+            + " (default: 15) and the key exchange (default: 30) with ESXi hosts over SSH");
 
         System.out.println("\nYou can obtain hosts file information, by using 'secprotomgmt.jar' utility");
     }
@@ -4,16 +4,35 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import ch.ethz.ssh2.ChannelCondition;
 import ch.ethz.ssh2.Connection;
+import ch.ethz.ssh2.ConnectionMonitor;
 import ch.ethz.ssh2.InteractiveCallback;
 import ch.ethz.ssh2.Session;
-import ch.ethz.ssh2.StreamGobbler;
 
 /**
  * Utility program to handle SSH Connection to ESXi hosts, running commands,
@@ -55,6 +74,41 @@ public class SSHUtil
     public static final String SERVICE_STATE_RUNNING = "RUNNING";
     public static final String SERVICE_STATE_NOT_RUNNING = "NOT RUNNING";
     public static final String SERVICE_STATE_STOPPED = "STOPPED";
+    public static final long SERVICE_STATE_TIMEOUT_MS = 240 * 1000;
+    public static final long ASYNC_KICKIN_TIMEOUT_MS = 10 * 1000;
+    public static final long READINESS_INITIAL_DELAY_MS = 250;
+    public static final long READINESS_MAX_DELAY_MS = 5000;
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 15 * 1000;
+    public static final int DEFAULT_KEX_TIMEOUT_MS = 30 * 1000;
+    private static final String AUTH_METHOD_PASSWORD = "password";
+    private static final String AUTH_METHOD_KEYBOARD_INTERACTIVE = "keyboard-interactive";
+
+    // Cheaper ciphers and MACs first; the rest stay in the list so that negotiation never fails
+    private static final String[] PREFERRED_CIPHERS = {"aes128-ctr", "aes192-ctr", "aes256-ctr", "aes128-cbc",
+        "aes192-cbc", "aes256-cbc", "blowfish-ctr", "blowfish-cbc", "3des-ctr", "3des-cbc"};
+    private static final String[] PREFERRED_MACS = {"hmac-sha1", "hmac-sha1-96", "hmac-md5", "hmac-md5-96"};
+    private static final String[] PREFERRED_HOST_KEY_ALGORITHMS = {"ssh-rsa", "ssh-dss"};
+
+    private static volatile int connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MS;
+    private static volatile int kexTimeoutMillis = DEFAULT_KEX_TIMEOUT_MS;
+
+    /**
+     * Set the timeout of the TCP connect to SSH hosts
+     */
+    public static void
+    setConnectTimeout(int timeoutMillis)
+    {
+        connectTimeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Set the timeout of the initial key exchange with SSH hosts
+     */
+    public static void
+    setKexTimeout(int timeoutMillis)
+    {
+        kexTimeoutMillis = timeoutMillis;
+    }
 
     /**
      * Connects to the remote host using SSH
@@ -67,12 +121,44 @@ public class SSHUtil
      */
     public static Connection
     getSSHConnection(String hostName, String userName, final String password) throws Exception
+    {
+        return getSSHConnection(hostName, userName, password, connectTimeoutMillis, kexTimeoutMillis);
+    }
+
+    /**
+     * Same as above, with the given TCP connect and key exchange timeouts instead of the configured ones
+     */
+    public static Connection
+    getSSHConnection(String hostName, String userName, final String password, int connectTimeout, int kexTimeout)
+        throws Exception
     {
         Connection conn = new Connection(hostName);
-        String[] strArray;
+        conn.setClient2ServerCiphers(PREFERRED_CIPHERS);
+        conn.setServer2ClientCiphers(PREFERRED_CIPHERS);
+        conn.setClient2ServerMACs(PREFERRED_MACS);
+        conn.setServer2ClientMACs(PREFERRED_MACS);
+        conn.setServerHostKeyAlgorithms(PREFERRED_HOST_KEY_ALGORITHMS);
         // Now try to connect
-        conn.connect();
+        conn.connect(null, connectTimeout, kexTimeout);
+
+        try {
+            conn.setTCPNoDelay(true);
+            authenticate(conn, userName, password);
+        } catch (Exception e) {
+            conn.close();
+            throw e;
+        }
+        System.out.println("Successfully connected to the remote ssh host: " + hostName);
+        return conn;
+    }
 
+    /**
+     * Authenticate with password or keyboard-interactive, whichever the server offers
+     */
+    private static void
+    authenticate(Connection conn, String userName, final String password) throws Exception
+    {
+        String[] strArray;
         try {
             strArray = conn.getRemainingAuthMethods(userName);
         } catch (IOException e) {
@@ -93,35 +179,44 @@ public class SSHUtil
         } else {
             List<String> authMethods = Arrays.asList(strArray);
             // Authenticate
-            if (authMethods.contains("password")) {
-                if (!conn.authenticateWithPassword(userName, password)) {
+            if (authMethods.contains(AUTH_METHOD_PASSWORD)) {
+                if (!authenticateWithMethod(conn, AUTH_METHOD_PASSWORD, userName, password)) {
                     throw new Exception("Password based authentication failed.");
                 }
-            } else if (authMethods.contains("keyboard-interactive")) {
-                InteractiveCallback cb = new InteractiveCallback() {
-                    @Override
-                    public String[] replyToChallenge(String name, String instruction, int numPrompts, String[] prompt,
-                        boolean[] echo) throws Exception {
-                        /*
-                         * Going with the assumption that the only thing servers
-                         * asks for is password
-                         */
-                        String[] response = new String[numPrompts];
-                        for (int i = 0; i < response.length; i++) {
-                            response[i] = password;
-                        }
-                        return response;
-                    }
-                };
-                if (!conn.authenticateWithKeyboardInteractive(userName, cb)) {
+            } else if (authMethods.contains(AUTH_METHOD_KEYBOARD_INTERACTIVE)) {
+                if (!authenticateWithMethod(conn, AUTH_METHOD_KEYBOARD_INTERACTIVE, userName, password)) {
                     throw new Exception("Keyboard-interactive based authentication failed.");
                 }
             } else {
                 throw new Exception("SSH Server doesnt support password or keyboard-interactive logins");
             }
         }
-        System.out.println("Successfully connected to the remote ssh host: " + hostName);
-        return conn;
+    }
+
+    private static boolean
+    authenticateWithMethod(Connection conn, String authMethod, String userName, final String password)
+        throws Exception
+    {
+        if (AUTH_METHOD_PASSWORD.equals(authMethod)) {
+            return conn.authenticateWithPassword(userName, password);
+        }
+
+        InteractiveCallback cb = new InteractiveCallback() {
+            @Override
+            public String[] replyToChallenge(String name, String instruction, int numPrompts, String[] prompt,
+                boolean[] echo) throws Exception {
+                /*
+                 * Going with the assumption that the only thing servers
+                 * asks for is password
+                 */
+                String[] response = new String[numPrompts];
+                for (int i = 0; i < response.length; i++) {
+                    response[i] = password;
+                }
+                return response;
+            }
+        };
+        return conn.authenticateWithKeyboardInteractive(userName, cb);
     }
 
     /**
@@ -155,30 +250,23 @@ public class SSHUtil
     getRemoteSSHCmdOutput(Connection conn, String command, long timeout) throws Exception
     {
         Session session = null;
-        InputStream stderr = null;
-        InputStream stdout = null;
         Map<String, String> returnData = new HashMap<String, String>();
         try {
             session = conn.openSession();
             System.out.println("Running command '" + command + "' with timeout of " + timeout + " seconds");
             session.execCommand(command);
-            // Wait until command completes or times out
-            int result = session.waitForCondition(ChannelCondition.EOF, timeout * 1000);
-            if ((result & ChannelCondition.TIMEOUT) != 0) {
+            // Read both streams until command completes or times out
+            StreamReader streamReader = new StreamReader(session);
+            if (!streamReader.drain(timeout * 1000)) {
                 System.out.println("A timeout occured while waiting for data from the " + "server");
-                if (session != null) {
-                    session.close();
-                }
                 return returnData;
             }
-            stderr = new StreamGobbler(session.getStderr());
-            stdout = new StreamGobbler(session.getStdout());
             // populate output stream
-            StringBuffer outputDataStream = getInputStreamString(stdout);
-            returnData.put(SSH_OUTPUT_STREAM, outputDataStream.toString());
+            String outputDataStream = streamReader.getOutputData();
+            returnData.put(SSH_OUTPUT_STREAM, outputDataStream);
             // populate error stream
-            StringBuffer errorDataStream = getInputStreamString(stderr);
-            returnData.put(SSH_ERROR_STREAM, errorDataStream.toString());
+            String errorDataStream = streamReader.getErrorData();
+            returnData.put(SSH_ERROR_STREAM, errorDataStream);
             Integer exitStatus = session.getExitStatus();
             if (errorDataStream.length() != 0) {
                 // command execution failed ( even if execution of one command fails)
@@ -195,18 +283,196 @@ public class SSHUtil
             if (session != null) {
                 session.close();
             }
-            if (stderr != null) {
-                stderr.close();
-            }
-            if (stdout != null) {
-                stdout.close();
-            }
         }
         // returnData must contain Error as well as output stream
         // and the test cases would decide accordingly
         return returnData;
     }
 
+    /**
+     * Executes the given command on the remote host using ssh, handing the lines of both streams to
+     * the consumer as they arrive. Only the last lines of each stream are kept in memory, so output
+     * of noisy commands (log tails, esxcli dumps) doesn't pile up.
+     *
+     * @param conn SSH Connection
+     * @param command Command to be executed
+     * @param timeout Timeout in seconds
+     * @param lineConsumer receives the lines as they arrive, may be null
+     * @param maxBytes max bytes per stream handed to the consumer, negative for no cap
+     * @param tailLines number of last lines kept per stream
+     * @return HashMap with the last lines of error and output streams, and the exit code if the
+     *         command completed
+     * @throws Exception
+     */
+    public static Map<String, String>
+    streamRemoteSSHCmdOutput(Connection conn, String command, long timeout, StreamReader.LineConsumer lineConsumer,
+        long maxBytes, int tailLines) throws Exception
+    {
+        Session session = null;
+        Map<String, String> returnData = new HashMap<String, String>();
+        try {
+            session = conn.openSession();
+            System.out.println("Streaming output of command '" + command + "' with timeout of " + timeout + " seconds");
+            session.execCommand(command);
+            StreamReader streamReader = new StreamReader(session, lineConsumer, maxBytes, Math.max(0, tailLines));
+            boolean completed = streamReader.drain(timeout * 1000);
+            returnData.put(SSH_OUTPUT_STREAM, streamReader.getOutputData());
+            returnData.put(SSH_ERROR_STREAM, streamReader.getErrorData());
+            if (!completed) {
+                System.out.println("A timeout occured while waiting for data from the server");
+                return returnData;
+            }
+            if (streamReader.isOutputTruncated() || streamReader.isErrorTruncated()) {
+                System.out.println("Output of '" + command + "' exceeded " + maxBytes + " bytes, the rest was dropped");
+            }
+            Integer exitStatus = session.getExitStatus();
+            if (exitStatus != null) {
+                returnData.put(SSH_EXIT_CODE, String.valueOf(exitStatus));
+            }
+        } finally {
+            if (session != null) {
+                session.close();
+            }
+        }
+        return returnData;
+    }
+
+    /**
+     * Result of one command of a batch. Exit code is null if the batch ended before the command
+     * completed
+     */
+    public static class BatchCommandResult
+    {
+        final String command;
+        Integer exitCode;
+        String outputData;
+        String errorData;
+
+        BatchCommandResult(String command)
+        {
+            this.command = command;
+        }
+
+        public String
+        getCommand()
+        {
+            return command;
+        }
+
+        public Integer
+        getExitCode()
+        {
+            return exitCode;
+        }
+
+        public String
+        getOutputData()
+        {
+            return outputData;
+        }
+
+        public String
+        getErrorData()
+        {
+            return errorData;
+        }
+
+        public boolean
+        isSuccess()
+        {
+            return exitCode != null && exitCode.intValue() == 0;
+        }
+    }
+
+    /**
+     * Executes several commands on the remote host in a single ssh session, one after another,
+     * and returns the output, error and exit code of each.
+     *
+     * Each command runs in its own subshell, framed by begin and end marker lines on both streams;
+     * the end marker on standard output carries the exit code. The markers hold a random token, so
+     * they cannot be mistaken for command output.
+     *
+     * @param conn SSH Connection
+     * @param commands Commands to be executed, in order
+     * @param timeout Timeout in seconds for the whole batch
+     * @return results in the order of the commands
+     * @throws Exception
+     */
+    public static List<BatchCommandResult>
+    executeRemoteSSHBatch(Connection conn, List<String> commands, long timeout) throws Exception
+    {
+        String token = "FDMBATCH_" + UUID.randomUUID().toString().replace("-", "");
+        StringBuilder script = new StringBuilder();
+        for (int i = 0; i < commands.size(); i++) {
+            String beginMarker = token + "_BEGIN_" + i;
+            String endMarker = token + "_END_" + i;
+            script.append("echo ").append(beginMarker).append("; echo ").append(beginMarker).append(" >&2\n");
+            script.append("(\n").append(commands.get(i)).append("\n)\n");
+            // A newline before the end markers, as the command's output may not end with one
+            script.append("rc=$?; echo; echo ").append(endMarker).append("_$rc; echo >&2; echo ")
+                .append(endMarker).append(" >&2\n");
+        }
+
+        List<BatchCommandResult> results = new ArrayList<BatchCommandResult>();
+        Session session = null;
+        try {
+            session = conn.openSession();
+            System.out.println("Running batch of " + commands.size() + " commands with timeout of " + timeout + " seconds");
+            session.execCommand(script.toString());
+            StreamReader streamReader = new StreamReader(session);
+            if (!streamReader.drain(timeout * 1000)) {
+                System.out.println("A timeout occured while waiting for data from the server");
+            }
+            String outputData = streamReader.getOutputData().replace("\r\n", "\n");
+            String errorData = streamReader.getErrorData().replace("\r\n", "\n");
+
+            for (int i = 0; i < commands.size(); i++) {
+                BatchCommandResult result = new BatchCommandResult(commands.get(i));
+                String beginMarker = token + "_BEGIN_" + i + "\n";
+                String endMarker = "\n" + token + "_END_" + i;
+
+                result.outputData = framedData(outputData, beginMarker, endMarker + "_");
+                result.errorData = framedData(errorData, beginMarker, endMarker + "\n");
+                int endIndex = outputData.indexOf(endMarker + "_");
+                if (endIndex >= 0) {
+                    int codeStart = endIndex + endMarker.length() + 1;
+                    int codeEnd = outputData.indexOf('\n', codeStart);
+                    try {
+                        result.exitCode = Integer.valueOf(
+                            outputData.substring(codeStart, codeEnd < 0 ? outputData.length() : codeEnd).trim());
+                    } catch (NumberFormatException nfe) {
+                        System.err.println("Unable to read exit code of '" + commands.get(i) + "'");
+                    }
+                }
+                results.add(result);
+            }
+        } finally {
+            if (session != null) {
+                session.close();
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Data between the begin and end markers; whatever followed the begin marker, if the end marker
+     * never came; null if the begin marker never came
+     */
+    private static String
+    framedData(String data, String beginMarker, String endMarker)
+    {
+        int beginIndex = data.indexOf(beginMarker);
+        if (beginIndex < 0) {
+            return null;
+        }
+        int dataStart = beginIndex + beginMarker.length();
+        int endIndex = data.indexOf(endMarker, dataStart);
+        if (endIndex < 0) {
+            return data.substring(dataStart);
+        }
+        return data.substring(dataStart, endIndex);
+    }
+
     /**
      * Populate a StringBuffer with the contents of an InputStream
      *
@@ -224,7 +490,7 @@ public class SSHUtil
                 out = new StringBuffer();
                 String tmp = "";
                 while ((tmp = reader.readLine()) != null) {
-                    out.append(tmp + "\n");
+                    out.append(tmp).append('\n');
                 }
             } finally {
                 if (reader != null) {
@@ -275,7 +541,9 @@ public class SSHUtil
 
     /**
      * Asynchronously executes the given command on the remote host using ssh. It
-     * doesn't waits for command to complete on the remote host.
+     * doesn't waits for command to complete on the remote host. The session is kept open for
+     * ASYNC_KICKIN_TIMEOUT_MS for the command to kick in, unless the command exits earlier. Use the
+     * ReadinessCheck variant to return as soon as the command took effect
      *
      * @param Connection SSH Connection
      * @param command Command to be executed
@@ -291,9 +559,8 @@ public class SSHUtil
                 "Running command '" + command + "' asynchronously. "
                     + " It doesn't wait for command to complete on remote host.");
             session.execCommand(command);
-            int sleep = 10;
-            System.out.println("Sleep for " + sleep + " seconds for command to kick in.");
-            Thread.sleep(sleep * 1000);
+            // Output is no sign of readiness; closing the session early would hang up on the command
+            session.waitForCondition(ChannelCondition.EXIT_STATUS | ChannelCondition.CLOSED, ASYNC_KICKIN_TIMEOUT_MS);
 
         } finally {
             if (session != null) {
@@ -302,6 +569,110 @@ public class SSHUtil
         }
     }
 
+    /**
+     * Asynchronously executes the given command on the remote host using ssh, and waits until
+     * the readiness check holds (e.g. a service got started), or the timeout runs out
+     *
+     * @param conn SSH Connection
+     * @param command Command to be executed
+     * @param readiness check telling that the command took effect
+     * @param timeoutMillis max time to wait for readiness
+     * @return true, if readiness check held within the timeout
+     * @throws Exception
+     */
+    public static boolean
+    executeAsyncRemoteSSHCommand(Connection conn, String command, ReadinessCheck readiness, long timeoutMillis)
+        throws Exception
+    {
+        Session session = null;
+        try {
+            session = conn.openSession();
+            System.out.println(
+                "Running command '" + command + "' asynchronously. Wait up to " + (timeoutMillis / 1000)
+                    + " seconds for it to take effect on remote host.");
+            session.execCommand(command);
+            return waitUntilReady(conn, readiness, timeoutMillis);
+        } finally {
+            if (session != null) {
+                session.close();
+            }
+        }
+    }
+
+    /**
+     * Condition checked on the remote host, to find out if something it waits for has happened
+     */
+    public interface ReadinessCheck
+    {
+        boolean
+        isReady(Connection conn) throws Exception;
+    }
+
+    /**
+     * Evaluate the readiness check until it holds or the timeout runs out. The check is repeated
+     * with an exponentially growing delay, starting at READINESS_INITIAL_DELAY_MS and capped at
+     * READINESS_MAX_DELAY_MS
+     *
+     * @return true, if the check held within the timeout
+     */
+    public static boolean
+    waitUntilReady(Connection conn, ReadinessCheck readiness, long timeoutMillis) throws Exception
+    {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long delay = READINESS_INITIAL_DELAY_MS;
+
+        while (true) {
+            if (readiness.isReady(conn)) {
+                return true;
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            Thread.sleep(Math.min(delay, remaining));
+            delay = Math.min(delay * 2, READINESS_MAX_DELAY_MS);
+        }
+    }
+
+    /**
+     * Readiness check that holds once the service is in the expected state (running or stopped)
+     */
+    public static ReadinessCheck
+    serviceStateCheck(final String service, final boolean expectRunning)
+    {
+        return new ReadinessCheck() {
+            @Override
+            public boolean
+            isReady(Connection conn) throws Exception
+            {
+                if (expectRunning) {
+                    return isServiceRunning(conn, service);
+                }
+                String output = getRemoteSSHCmdOutput(conn, service + " status").get(SSH_OUTPUT_STREAM);
+                return output != null && (output.toUpperCase().contains(SERVICE_STATE_STOPPED)
+                    || output.toUpperCase().contains(SERVICE_STATE_NOT_RUNNING));
+            }
+        };
+    }
+
+    /**
+     * Readiness check that holds once the output of the command contains the marker, e.g. a
+     * process name in the output of 'ps'
+     */
+    public static ReadinessCheck
+    outputMarkerCheck(final String command, final String marker)
+    {
+        return new ReadinessCheck() {
+            @Override
+            public boolean
+            isReady(Connection conn) throws Exception
+            {
+                String output = getRemoteSSHCmdOutput(conn, command).get(SSH_OUTPUT_STREAM);
+                return output != null && output.contains(marker);
+            }
+        };
+    }
+
     /**
      * Executes the given command on the remote host using ssh
      *
@@ -315,87 +686,51 @@ public class SSHUtil
     public static boolean
     executeRemoteSSHCommand(Session session, String command, long maxTimeout) throws Exception
     {
-        StreamReader isReader = null;
-        StreamReader errReader = null;
         String errorDataStream = null;
         boolean success = false;
 
-        try {
-            System.out.println("Running command '" + command + "' with timeout of " + maxTimeout + " seconds");
-            session.execCommand(command);
-
-            /*
-             * Start stream reader for standard output
-             */
-            isReader = new StreamReader(new BufferedReader(new InputStreamReader(session.getStdout())), "InputStream");
+        System.out.println("Running command '" + command + "' with timeout of " + maxTimeout + " seconds");
+        session.execCommand(command);
 
-            Thread outThread = new Thread(isReader);
-            outThread.start();
-
-            /*
-             * Start stream reader for error stream
-             */
-            errReader = new StreamReader(new BufferedReader(new InputStreamReader(session.getStderr())), "ErrorStream");
-            Thread errThread = new Thread(errReader);
-            errThread.start();
-
-            /*
-             * Wait until command completes or times out
-             */
-            int result = session.waitForCondition(ChannelCondition.EOF, maxTimeout * 1000);
-            if ((result & ChannelCondition.TIMEOUT) != 0) {
-                System.out.println("A timeout occured while waiting for data from the " + "server");
-            } else {
+        /*
+         * Drain output and error streams until command completes or times out
+         */
+        StreamReader streamReader = new StreamReader(session);
+        if (!streamReader.drain(maxTimeout * 1000)) {
+            System.out.println("A timeout occured while waiting for data from the " + "server");
+        } else {
+            errorDataStream = streamReader.getErrorData();
+            if ((errorDataStream == null || errorDataStream.length() == 0)) {
                 /*
-                 * It is possible that the errReader thread has not completely
-                 * finished saving error data at this point, since
-                 * waitForCondition and errReader are running concurrently.
-                 * Sleep 2 seconds to allow errReader thread extra time to
-                 * finish.
+                 * Some server implementations do not return an exit status
                  */
-                Thread.sleep(2000);
-                errorDataStream = errReader.getDataStream();
-                if ((errorDataStream == null || errorDataStream.length() == 0)) {
+                Integer exitStatus = session.getExitStatus();
+                if (exitStatus == null) {
+                    System.out.println("'" + command + "' command did not return an " + "exit status value");
+                    success = true;
+                } else {
                     /*
-                     * Some server implementations do not return an exit status
+                     * Nonzero exit status value is an error
                      */
-                    Integer exitStatus = session.getExitStatus();
-                    if (exitStatus == null) {
-                        System.out.println("'" + command + "' command did not return an " + "exit status value");
+                    System.out
+                        .println("'" + command + "' command returned an exit " + "status value: " + exitStatus);
+                    if (exitStatus.equals(0)) {
                         success = true;
                     } else {
-                        /*
-                         * Nonzero exit status value is an error
-                         */
-                        System.out
-                            .println("'" + command + "' command returned an exit " + "status value: " + exitStatus);
-                        if (exitStatus.equals(0)) {
-                            success = true;
-                        } else {
-                            System.out.println("'" + command + "' command returned a nonzero " + "exit status value");
-                        }
+                        System.out.println("'" + command + "' command returned a nonzero " + "exit status value");
                     }
-                } else {
-                    System.out.println("Error data stream contains a message");
-                    if (errorDataStream.contains("Terminating watchdog process")
-                        || errorDataStream.contains("Picked up JAVA_TOOL_OPTIONS:")) {
-                        // ignore this error mesg.
-                        success = true;
-                    }
-
-                    String output = isReader.getDataStream();
+                }
+            } else {
+                System.out.println("Error data stream contains a message");
+                if (errorDataStream.contains("Terminating watchdog process")
+                    || errorDataStream.contains("Picked up JAVA_TOOL_OPTIONS:")) {
+                    // ignore this error mesg.
+                    success = true;
                 }
             }
-            if (success) {
-                System.out.println("Successfully executed '" + command + "' command on remote ssh host");
-            }
-        } finally {
-            if (isReader != null) {
-                isReader.stopThread();
-            }
-            if (errReader != null) {
-                errReader.stopThread();
-            }
+        }
+        if (success) {
+            System.out.println("Successfully executed '" + command + "' command on remote ssh host");
         }
         return success;
     }
@@ -591,52 +926,27 @@ public class SSHUtil
     public static boolean
     waitTillServiceisStopped(Connection conn, String service) throws Exception
     {
-        boolean isServiceStopped = false;
-        int waitCount = 24;
-        String command = null;
-        Map<String, String> sshResponse = null;
-        String output = null;
-        command = service + " status";
-        while (waitCount != 0) {
-            sshResponse = SSHUtil.getRemoteSSHCmdOutput(conn, command);
-            output = sshResponse.get(SSH_OUTPUT_STREAM);
-            System.out.println("Printing the " + command + " command output");
-            System.out.println(output);
-            if (output != null && (output.toUpperCase().contains(SERVICE_STATE_STOPPED)
-                || output.toUpperCase().contains(SERVICE_STATE_NOT_RUNNING))) {
-                isServiceStopped = true;
-                System.out.println("Service " + service + " is stopped");
-                break;
-            } else {
-                waitCount--;
-                System.out.println("Service " + service + " is not stopped");
-                System.out.println("Sleeping for 10 secs before querying again for the service status");
-                Thread.sleep(10000);
-            }
+        boolean isServiceStopped = waitUntilReady(conn, serviceStateCheck(service, false), SERVICE_STATE_TIMEOUT_MS);
+        if (isServiceStopped) {
+            System.out.println("Service " + service + " is stopped");
+        } else {
+            System.out.println("Service " + service + " is not stopped");
         }
 
         return isServiceStopped;
     }
 
     /**
-     * Checks whether the specified service is stopped on the provided host
+     * Checks whether the specified service is started on the provided host
      */
     public static boolean
     waitTillServiceisStarted(Connection conn, String service) throws Exception
     {
-        boolean isServiceStarted = false;
-        int waitCount = 24;
-        while (waitCount != 0) {
-            if (isServiceRunning(conn, service)) {
-                isServiceStarted = true;
-                System.out.println("Service " + service + " is started");
-                break;
-            } else {
-                waitCount--;
-                System.out.println("Service " + service + " is not started");
-                System.out.println("Sleeping for 10 secs before querying again for the service status");
-                Thread.sleep(10000);
-            }
+        boolean isServiceStarted = waitUntilReady(conn, serviceStateCheck(service, true), SERVICE_STATE_TIMEOUT_MS);
+        if (isServiceStarted) {
+            System.out.println("Service " + service + " is started");
+        } else {
+            System.out.println("Service " + service + " is not started");
         }
 
         return isServiceStarted;
@@ -668,4 +978,664 @@ public class SSHUtil
         }
         return result;
     }
+
+    /**
+     * Pool of authenticated SSH connections, keyed by host and user.
+     *
+     * The number of open connections (idle and borrowed) is bounded; borrowers wait in arrival
+     * order for a free slot, and an idle connection of another host is closed to make room.
+     * Connections left idle longer than the idle timeout are closed in the background. A
+     * connection is handed out again only if it was not reported lost by the transport.
+     */
+    public static class SSHConnectionPool
+    {
+        private final int maxConnections;
+        private final long idleTimeoutMillis;
+        private final Semaphore openSlots;
+        // Interval of the wait for a free slot, between attempts to evict an idle connection
+        private static final long SLOT_WAIT_INTERVAL_MS = 500;
+        private final Map<String, Deque<PooledConnection>> idleConns = new HashMap<String, Deque<PooledConnection>>();
+        private final Map<Connection, PooledConnection> borrowedConns = new IdentityHashMap<Connection, PooledConnection>();
+        private final ScheduledExecutorService idleEvictor;
+        private boolean closed = false;
+
+        /**
+         * Connection in the pool, along with its key, last use time and liveness
+         */
+        private static class PooledConnection implements ConnectionMonitor
+        {
+            final String key;
+            final String hostName;
+            final Connection conn;
+            volatile boolean lost = false;
+            long lastUsed;
+
+            PooledConnection(String key, String hostName, Connection conn)
+            {
+                this.key = key;
+                this.hostName = hostName;
+                this.conn = conn;
+            }
+
+            @Override
+            public void
+            connectionLost(Throwable reason)
+            {
+                lost = true;
+            }
+
+            boolean
+            isHealthy()
+            {
+                return !lost && conn.isAuthenticationComplete();
+            }
+        }
+
+        public SSHConnectionPool(int maxConnections, long idleTimeoutMillis)
+        {
+            this.maxConnections = Math.max(1, maxConnections);
+            this.idleTimeoutMillis = idleTimeoutMillis;
+            this.openSlots = new Semaphore(this.maxConnections, true);
+
+            idleEvictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread
+                newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, "ssh-pool-evictor");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            long evictPeriod = Math.max(1000, idleTimeoutMillis / 2);
+            idleEvictor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void
+                run()
+                {
+                    evictIdle(System.currentTimeMillis() - SSHConnectionPool.this.idleTimeoutMillis, null);
+                }
+            }, evictPeriod, evictPeriod, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Borrow a connection to the host, reusing an idle one when available. Must be handed back
+         * with release() or invalidate()
+         */
+        public Connection
+        borrow(String hostName, String userName, String password) throws Exception
+        {
+            return borrow(hostName, userName, password, -1);
+        }
+
+        /**
+         * Same as above, but wait at most timeoutMillis for a free slot, and bound the TCP connect and
+         * key exchange of a new connection by what is left of it (negative to wait without limit).
+         * Authentication itself is not bounded by ganymed; callers needing a hard limit must close
+         * the connection from another thread
+         *
+         * @return null, if no slot got free in time
+         */
+        public Connection
+        borrow(String hostName, String userName, String password, long timeoutMillis) throws Exception
+        {
+            String key = userName + "@" + hostName;
+            long deadline = timeoutMillis < 0 ? Long.MAX_VALUE : System.currentTimeMillis() + timeoutMillis;
+
+            // Reuse a healthy idle connection, its slot stays taken
+            Connection idleConn = reuseIdle(key);
+            if (idleConn != null) {
+                return idleConn;
+            }
+
+            /*
+             * Need a new connection. Make room by closing the least recently used idle connection.
+             * Connections may be released to idle while waiting, so the wait is done in short
+             * intervals, evicting again (or reusing one of this host) after each
+             */
+            while (!openSlots.tryAcquire(0, TimeUnit.MILLISECONDS)) {
+                evictOldestIdle();
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return null;
+                }
+                if (openSlots.tryAcquire(Math.min(SLOT_WAIT_INTERVAL_MS, remaining), TimeUnit.MILLISECONDS)) {
+                    break;
+                }
+                idleConn = reuseIdle(key);
+                if (idleConn != null) {
+                    return idleConn;
+                }
+            }
+
+            PooledConnection pooled;
+            try {
+                ensureOpen();
+                Connection conn;
+                if (timeoutMillis < 0) {
+                    conn = getSSHConnection(hostName, userName, password);
+                } else {
+                    // Connect and key exchange must not run past the deadline either (0 means no limit)
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        openSlots.release();
+                        return null;
+                    }
+                    int remainingMillis = (int) Math.min(remaining, Integer.MAX_VALUE);
+                    conn = getSSHConnection(hostName, userName, password,
+                        Math.min(connectTimeoutMillis, remainingMillis), Math.min(kexTimeoutMillis, remainingMillis));
+                }
+                pooled = new PooledConnection(key, hostName, conn);
+                conn.addConnectionMonitor(pooled);
+                synchronized (this) {
+                    borrowedConns.put(conn, pooled);
+                }
+                return conn;
+            } catch (Exception e) {
+                openSlots.release();
+                throw e;
+            }
+        }
+
+        /**
+         * Take a healthy idle connection to the key off the idle list and mark it borrowed
+         *
+         * @return null, if there is none
+         */
+        private Connection
+        reuseIdle(String key)
+        {
+            PooledConnection pooled;
+            while ((pooled = pollIdle(key)) != null) {
+                if (pooled.isHealthy()) {
+                    synchronized (this) {
+                        if (!closed) {
+                            borrowedConns.put(pooled.conn, pooled);
+                            return pooled.conn;
+                        }
+                    }
+                }
+                closeConnection(pooled);
+            }
+            ensureOpen();
+            return null;
+        }
+
+        private synchronized void
+        ensureOpen()
+        {
+            if (closed) {
+                throw new IllegalStateException("SSH connection pool is closed");
+            }
+        }
+
+        /**
+         * Hand a borrowed connection back to the pool
+         */
+        public void
+        release(Connection conn)
+        {
+            PooledConnection pooled;
+            synchronized (this) {
+                pooled = borrowedConns.remove(conn);
+                if (pooled != null && !closed && pooled.isHealthy()) {
+                    pooled.lastUsed = System.currentTimeMillis();
+                    Deque<PooledConnection> hostIdleConns = idleConns.get(pooled.key);
+                    if (hostIdleConns == null) {
+                        hostIdleConns = new ArrayDeque<PooledConnection>();
+                        idleConns.put(pooled.key, hostIdleConns);
+                    }
+                    hostIdleConns.push(pooled);
+                    return;
+                }
+            }
+            if (pooled != null) {
+                closeConnection(pooled);
+            } else if (conn != null) {
+                conn.close();
+            }
+        }
+
+        /**
+         * Close a borrowed connection that must not be reused
+         */
+        public void
+        invalidate(Connection conn)
+        {
+            PooledConnection pooled;
+            synchronized (this) {
+                pooled = borrowedConns.remove(conn);
+            }
+            if (pooled != null) {
+                closeConnection(pooled);
+            } else if (conn != null) {
+                conn.close();
+            }
+        }
+
+        /**
+         * Close the idle connections to the host, e.g. once its SSH service is stopped
+         */
+        public void
+        evictHost(String hostName)
+        {
+            evictIdle(Long.MAX_VALUE, hostName);
+        }
+
+        /**
+         * Close all idle connections and stop pooling. Borrowed connections are closed on release
+         */
+        public void
+        close()
+        {
+            synchronized (this) {
+                closed = true;
+            }
+            idleEvictor.shutdownNow();
+            evictIdle(Long.MAX_VALUE, null);
+        }
+
+        private synchronized PooledConnection
+        pollIdle(String key)
+        {
+            Deque<PooledConnection> hostIdleConns = idleConns.get(key);
+            if (hostIdleConns == null) {
+                return null;
+            }
+            PooledConnection pooled = hostIdleConns.poll();
+            if (hostIdleConns.isEmpty()) {
+                idleConns.remove(key);
+            }
+            return pooled;
+        }
+
+        /**
+         * Close idle connections last used before the given time, of the given host or of all hosts
+         */
+        private void
+        evictIdle(long usedBefore, String hostName)
+        {
+            List<PooledConnection> evicted = new ArrayList<PooledConnection>();
+            synchronized (this) {
+                Iterator<Deque<PooledConnection>> keyIter = idleConns.values().iterator();
+                while (keyIter.hasNext()) {
+                    Iterator<PooledConnection> connIter = keyIter.next().iterator();
+                    while (connIter.hasNext()) {
+                        PooledConnection pooled = connIter.next();
+                        if ((hostName == null || hostName.equals(pooled.hostName))
+                            && (pooled.lastUsed < usedBefore || !pooled.isHealthy())) {
+                            connIter.remove();
+                            evicted.add(pooled);
+                        }
+                    }
+                }
+                removeEmptyKeys();
+            }
+            for (PooledConnection pooled : evicted) {
+                closeConnection(pooled);
+            }
+        }
+
+        private void
+        evictOldestIdle()
+        {
+            PooledConnection oldest = null;
+            synchronized (this) {
+                for (Deque<PooledConnection> hostIdleConns : idleConns.values()) {
+                    PooledConnection candidate = hostIdleConns.peekLast();
+                    if (candidate != null && (oldest == null || candidate.lastUsed < oldest.lastUsed)) {
+                        oldest = candidate;
+                    }
+                }
+                if (oldest != null) {
+                    idleConns.get(oldest.key).removeLast();
+                    removeEmptyKeys();
+                }
+            }
+            if (oldest != null) {
+                closeConnection(oldest);
+            }
+        }
+
+        private void
+        removeEmptyKeys()
+        {
+            Iterator<Deque<PooledConnection>> keyIter = idleConns.values().iterator();
+            while (keyIter.hasNext()) {
+                if (keyIter.next().isEmpty()) {
+                    keyIter.remove();
+                }
+            }
+        }
+
+        private void
+        closeConnection(PooledConnection pooled)
+        {
+            try {
+                pooled.conn.close();
+            } finally {
+                openSlots.release();
+            }
+        }
+    }
+
+    /**
+     * Host to run a fanned out command on, along with its SSH credentials
+     */
+    public static class SSHHostTarget
+    {
+        final String hostName;
+        final String userName;
+        final String password;
+
+        public SSHHostTarget(String hostName, String userName, String password)
+        {
+            this.hostName = hostName;
+            this.userName = userName;
+            this.password = password;
+        }
+    }
+
+    /**
+     * Outcome of a fanned out command on one host. Exit code is null if the command did not
+     * complete, either because of a timeout or of a failure, which is then kept in error
+     */
+    public static class HostCommandResult
+    {
+        final String hostName;
+        Integer exitCode;
+        String outputData;
+        String errorData;
+        boolean timedOut = false;
+        Exception error;
+
+        HostCommandResult(String hostName)
+        {
+            this.hostName = hostName;
+        }
+
+        public String
+        getHostName()
+        {
+            return hostName;
+        }
+
+        public Integer
+        getExitCode()
+        {
+            return exitCode;
+        }
+
+        public String
+        getOutputData()
+        {
+            return outputData;
+        }
+
+        public String
+        getErrorData()
+        {
+            return errorData;
+        }
+
+        public boolean
+        isTimedOut()
+        {
+            return timedOut;
+        }
+
+        public Exception
+        getError()
+        {
+            return error;
+        }
+
+        public boolean
+        isSuccess()
+        {
+            return exitCode != null && exitCode.intValue() == 0;
+        }
+    }
+
+    /**
+     * Listener notified, on the thread which called execute(), as each host completes
+     */
+    public interface HostCommandListener
+    {
+        void
+        hostCompleted(HostCommandResult result);
+    }
+
+    /**
+     * Runs one command on a set of hosts, with a bounded number of hosts in flight and a timeout
+     * per host. Connections are taken from the pool, and dropped instead of reused if the command
+     * timed out or failed on them.
+     */
+    public static class SSHFanOutExecutor
+    {
+        private final SSHConnectionPool connPool;
+        private final int parallelism;
+        private final int outputTailLines;
+
+        public SSHFanOutExecutor(SSHConnectionPool connPool, int parallelism)
+        {
+            this(connPool, parallelism, -1);
+        }
+
+        /**
+         * @param outputTailLines number of last lines of output kept per host, negative to keep all
+         *            output. Bounds the memory held when many hosts produce lots of output
+         */
+        public SSHFanOutExecutor(SSHConnectionPool connPool, int parallelism, int outputTailLines)
+        {
+            this.connPool = connPool;
+            this.parallelism = Math.max(1, parallelism);
+            this.outputTailLines = outputTailLines;
+        }
+
+        /**
+         * Run the command on all hosts and hand each host's result to the listener (if any) as soon
+         * as it is available
+         *
+         * @param hosts hosts to run the command on
+         * @param command command to be executed
+         * @param timeoutSecs max time for each host, from waiting for a pooled connection until the
+         *            command completes
+         * @param listener notified of each host's result in completion order, may be null
+         * @return results of all hosts, in completion order
+         * @throws InterruptedException
+         */
+        public List<HostCommandResult>
+        execute(Collection<SSHHostTarget> hosts, final String command, final long timeoutSecs,
+            HostCommandListener listener) throws InterruptedException
+        {
+            List<HostCommandResult> results = new ArrayList<HostCommandResult>();
+            if (hosts.isEmpty()) {
+                return results;
+            }
+
+            ExecutorService fanOutPool = Executors.newFixedThreadPool(Math.min(parallelism, hosts.size()));
+            final ExecutorService hostWorkPool = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread
+                newThread(Runnable r)
+                {
+                    // Daemon: a host stalled in authentication must not keep the JVM alive
+                    Thread t = new Thread(r, "ssh-fanout-host");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            CompletionService<HostCommandResult> fanOutCompletion =
+                new ExecutorCompletionService<HostCommandResult>(fanOutPool);
+            try {
+                for (final SSHHostTarget host : hosts) {
+                    fanOutCompletion.submit(new Callable<HostCommandResult>() {
+                        @Override
+                        public HostCommandResult
+                        call()
+                        {
+                            return runOnHostWithDeadline(hostWorkPool, host, command, timeoutSecs);
+                        }
+                    });
+                }
+
+                for (int i = 0; i < hosts.size(); i++) {
+                    HostCommandResult result;
+                    try {
+                        result = fanOutCompletion.take().get();
+                    } catch (ExecutionException ee) {
+                        // runOnHost() reports failures in the result, not expected
+                        System.err.println("Unexpected failure in running '" + command + "': " + ee.getCause());
+                        continue;
+                    }
+                    results.add(result);
+                    if (listener != null) {
+                        listener.hostCompleted(result);
+                    }
+                }
+            } finally {
+                fanOutPool.shutdownNow();
+                hostWorkPool.shutdownNow();
+            }
+            return results;
+        }
+
+        /**
+         * Run the host's work on the work pool, and wait for it only until the host's deadline. On
+         * expiry, the connection in use is closed, which breaks whatever the work is blocked on
+         * (authentication, session setup, output read); the fan-out thread moves on right away
+         */
+        private HostCommandResult
+        runOnHostWithDeadline(ExecutorService hostWorkPool, final SSHHostTarget host, final String command,
+            final long timeoutSecs)
+        {
+            final long deadline = System.currentTimeMillis() + timeoutSecs * 1000;
+            final HostWork work = new HostWork();
+            Future<HostCommandResult> hostRun = hostWorkPool.submit(new Callable<HostCommandResult>() {
+                @Override
+                public HostCommandResult
+                call()
+                {
+                    return runOnHost(host, command, deadline, timeoutSecs, work);
+                }
+            });
+
+            HostCommandResult result = new HostCommandResult(host.hostName);
+            try {
+                return hostRun.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException te) {
+                result.timedOut = true;
+                System.err.println("[" + host.hostName + "] Timed out running '" + command + "' after "
+                    + timeoutSecs + " seconds");
+            } catch (InterruptedException ie) {
+                result.error = ie;
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException ee) {
+                result.error = ee.getCause() instanceof Exception ? (Exception) ee.getCause() : ee;
+            }
+            hostRun.cancel(true);
+            work.abandon();
+            return result;
+        }
+
+        private HostCommandResult
+        runOnHost(SSHHostTarget host, String command, long deadline, long timeoutSecs, HostWork work)
+        {
+            HostCommandResult result = new HostCommandResult(host.hostName);
+            Connection conn = null;
+            boolean reusable = false;
+            try {
+                conn = connPool.borrow(host.hostName, host.userName, host.password,
+                    Math.max(0, deadline - System.currentTimeMillis()));
+                if (conn != null && !work.attach(conn)) {
+                    // Host already given up on, while the connection was being set up
+                    result.timedOut = true;
+                    return result;
+                }
+                if (conn == null) {
+                    result.timedOut = true;
+                    System.err.println("[" + host.hostName + "] Timed out waiting for an SSH connection to run '"
+                        + command + "'");
+                    return result;
+                }
+                Session session = conn.openSession();
+                try {
+                    session.execCommand(command);
+                    StreamReader streamReader = new StreamReader(session, null, -1, outputTailLines);
+                    if (streamReader.drain(Math.max(0, deadline - System.currentTimeMillis()))) {
+                        result.exitCode = session.getExitStatus();
+                        reusable = true;
+                    } else {
+                        result.timedOut = true;
+                        System.err.println("[" + host.hostName + "] Timed out running '" + command + "' after "
+                            + timeoutSecs + " seconds");
+                    }
+                    result.outputData = streamReader.getOutputData();
+                    result.errorData = streamReader.getErrorData();
+                } finally {
+                    session.close();
+                }
+            } catch (Exception e) {
+                result.error = e;
+                System.err.println("[" + host.hostName + "] Failed running '" + command + "': " + e.getMessage());
+            } finally {
+                if (conn != null) {
+                    // A connection the host was given up on may have been closed under us
+                    if (work.detach() && reusable) {
+                        connPool.release(conn);
+                    } else {
+                        connPool.invalidate(conn);
+                    }
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Connection used by the work of one host, closed when the host is given up on
+         */
+        private static class HostWork
+        {
+            private Connection conn;
+            private boolean abandoned = false;
+
+            /**
+             * @return false, if the host was already given up on
+             */
+            synchronized boolean
+            attach(Connection conn)
+            {
+                if (abandoned) {
+                    return false;
+                }
+                this.conn = conn;
+                return true;
+            }
+
+            /**
+             * @return false, if the host was given up on while the connection was in use
+             */
+            synchronized boolean
+            detach()
+            {
+                conn = null;
+                return !abandoned;
+            }
+
+            void
+            abandon()
+            {
+                Connection toClose;
+                synchronized (this) {
+                    abandoned = true;
+                    toClose = conn;
+                }
+                // The work hands the connection back (invalidate) once it is unblocked
+                if (toClose != null) {
+                    toClose.close();
+                }
+            }
+        }
+    }
 }
\ No newline at end of file
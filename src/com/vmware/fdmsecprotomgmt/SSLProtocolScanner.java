@@ -0,0 +1,423 @@
+package com.vmware.fdmsecprotomgmt;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * SSL/TLS protocol version scanner, created from an immutable ScannerConfig.
+ *
+ * A single instance can be shared by any number of threads, and scanners with different
+ * configurations can run side by side in the same JVM without sharing anything: each scanner
+ * owns its probe executor and its write watchdog (see TestSSLServer.newWriteWatchdog()), and
+ * the record buffers used by the handshakes are pooled per thread. Idle threads of both go away
+ * on their own; close() releases them right away.
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+public class SSLProtocolScanner
+{
+    public static final int SSLV2 = 0x0200;
+
+    /**
+     * Versions probed by default: SSLv2, SSLv3, TLS 1.0, TLS 1.1 and TLS 1.2
+     */
+    public static final Set<Integer> ALL_VERSIONS = Collections.unmodifiableSet(new TreeSet<Integer>(
+        Arrays.asList(SSLV2, 0x0300, 0x0301, 0x0302, 0x0303)));
+
+    public static final ScannerConfig DEFAULT_CONFIG = new ScannerConfig(1, TestSSLServer.DEFAULT_PROBE_TIMEOUT_MS,
+        TestSSLServer.DEFAULT_ENDPOINT_TIMEOUT_MS);
+
+    private final ScannerConfig config;
+    // Threads of the concurrent probes; created on demand, reused across scans
+    private final ExecutorService probePool;
+    private final ScheduledExecutorService writeWatchdog;
+
+    /**
+     * Constructor
+     */
+    public SSLProtocolScanner(ScannerConfig config)
+    {
+        this.config = config;
+        this.probePool = Executors.newCachedThreadPool(TestSSLServer.PROBE_THREAD_FACTORY);
+        this.writeWatchdog = TestSSLServer.newWriteWatchdog();
+    }
+
+    public ScannerConfig
+    getConfig()
+    {
+        return config;
+    }
+
+    /**
+     * Stop the probe and watchdog threads of the scanner. The scanner must not be used afterwards
+     */
+    public void
+    close()
+    {
+        probePool.shutdownNow();
+        writeWatchdog.shutdownNow();
+    }
+
+    ScheduledExecutorService
+    getWriteWatchdog()
+    {
+        return writeWatchdog;
+    }
+
+    /**
+     * Immutable scanner configuration
+     */
+    public static final class ScannerConfig
+    {
+        private final int maxConcurrentProbes;
+        private final int probeTimeoutMillis;
+        private final int endpointTimeoutMillis;
+        private final TestSSLServer.ProbeStrategy strategy;
+        private final Set<Integer> versions;
+        private final Set<Integer> cipherSuites;
+        private final boolean leanDecode;
+
+        /**
+         * Constructor
+         *
+         * @param maxConcurrentProbes Connections open at the same time to one endpoint; 1 to probe serially
+         * @param probeTimeoutMillis Time budget of one probe: connect, ClientHello write, ServerHello read
+         * @param endpointTimeoutMillis Time budget of all the probes of one endpoint
+         * @param strategy How the SSLv3/TLS versions are probed
+         * @param versions Versions to probe, among ALL_VERSIONS
+         * @param cipherSuites Cipher suites offered in the ClientHellos
+         * @param leanDecode Stop decoding at the ServerHello, without reading the server certificate
+         */
+        public ScannerConfig(int maxConcurrentProbes, int probeTimeoutMillis, int endpointTimeoutMillis,
+            TestSSLServer.ProbeStrategy strategy, Collection<Integer> versions, Collection<Integer> cipherSuites,
+            boolean leanDecode)
+        {
+            if (!ALL_VERSIONS.containsAll(versions)) {
+                throw new IllegalArgumentException("Unsupported protocol version in: " + versions);
+            }
+            this.maxConcurrentProbes = Math.max(1, maxConcurrentProbes);
+            this.probeTimeoutMillis = probeTimeoutMillis;
+            this.endpointTimeoutMillis = endpointTimeoutMillis;
+            this.strategy = strategy;
+            this.versions = Collections.unmodifiableSet(new TreeSet<Integer>(versions));
+            this.cipherSuites = TestSSLServer.isAllCipherSuites(cipherSuites) ? TestSSLServer.CIPHER_SUITES.keySet()
+                : Collections.unmodifiableSet(new TreeSet<Integer>(cipherSuites));
+            this.leanDecode = leanDecode;
+        }
+
+        /**
+         * Constructor, probing all versions with all cipher suites, with the default strategy and
+         * lean decoding
+         */
+        public ScannerConfig(int maxConcurrentProbes, int probeTimeoutMillis, int endpointTimeoutMillis)
+        {
+            this(maxConcurrentProbes, probeTimeoutMillis, endpointTimeoutMillis, TestSSLServer.DEFAULT_PROBE_STRATEGY,
+                ALL_VERSIONS, TestSSLServer.CIPHER_SUITES.keySet(), true);
+        }
+
+        public int
+        getMaxConcurrentProbes()
+        {
+            return maxConcurrentProbes;
+        }
+
+        public int
+        getProbeTimeoutMillis()
+        {
+            return probeTimeoutMillis;
+        }
+
+        public int
+        getEndpointTimeoutMillis()
+        {
+            return endpointTimeoutMillis;
+        }
+
+        public TestSSLServer.ProbeStrategy
+        getStrategy()
+        {
+            return strategy;
+        }
+
+        public Set<Integer>
+        getVersions()
+        {
+            return versions;
+        }
+
+        public Set<Integer>
+        getCipherSuites()
+        {
+            return cipherSuites;
+        }
+
+        public boolean
+        isLeanDecode()
+        {
+            return leanDecode;
+        }
+    }
+
+    /**
+     * Scan the endpoint for the supported protocol versions. With more than one concurrent probe
+     * allowed, the SSLv3/TLS probes and the SSLv2 probe are sent concurrently; otherwise they are
+     * sent one after the other. The returned list is the same in both modes, null if no SSL/TLS
+     * server answered.
+     *
+     * If any probe runs out of its time budget, a ScanTimeoutException is thrown instead of
+     * returning a list which would silently miss that version.
+     */
+    public List<String>
+    scan(String hostName, int port) throws IOException
+    {
+        InetSocketAddress isa = new InetSocketAddress(hostName, port);
+        Set<Integer> sv = scanVersions(isa, System.currentTimeMillis() + config.endpointTimeoutMillis);
+        if (sv.size() == 0) {
+            System.out.println("No SSL/TLS server at " + isa);
+            return null;
+        }
+        return TestSSLServer.versionStrings(sv);
+    }
+
+    /**
+     * Versions the endpoint answered with; all probes must complete before the deadline
+     */
+    Set<Integer>
+    scanVersions(InetSocketAddress isa, long endpointDeadline) throws IOException
+    {
+        VersionScan scan = new VersionScan();
+        if (config.maxConcurrentProbes > 1) {
+            probeVersionsConcurrently(isa, endpointDeadline, scan);
+        } else {
+            if (config.strategy == TestSSLServer.ProbeStrategy.ADAPTIVE) {
+                probeVersionsAdaptively(isa, endpointDeadline, scan);
+            } else {
+                for (int v : config.versions) {
+                    if (v != SSLV2) {
+                        probeVersion(isa, v, endpointDeadline, scan);
+                    }
+                }
+            }
+            if (config.versions.contains(SSLV2)) {
+                probeSSLv2(isa, endpointDeadline, scan);
+            }
+        }
+
+        if (scan.timedOutProbes.size() > 0) {
+            throw new TestSSLServer.ScanTimeoutException(isa, TestSSLServer.versionStrings(scan.timedOutProbes),
+                TestSSLServer.versionStrings(scan.serverVersions));
+        }
+        return scan.serverVersions;
+    }
+
+    /**
+     * Send one ClientHello to the server, and record the version it answered with into the
+     * provided scan. The negotiated version is returned, or null if the server did not answer
+     * with a ServerHello in time.
+     */
+    private Integer
+    probeVersion(InetSocketAddress isa, int version, long endpointDeadline, VersionScan scan)
+    {
+        try {
+            TestSSLServer.ServerHello sh = TestSSLServer.connect(isa, version, config.cipherSuites,
+                TestSSLServer.probeDeadline(config.probeTimeoutMillis, endpointDeadline), config.leanDecode,
+                writeWatchdog);
+            if (sh != null) {
+                scan.addServerVersion(sh.protoVersion);
+                return sh.protoVersion;
+            }
+        } catch (SocketTimeoutException ste) {
+            scan.addTimedOutProbe(version);
+        }
+        return null;
+    }
+
+    private void
+    probeSSLv2(InetSocketAddress isa, long endpointDeadline, VersionScan scan)
+    {
+        try {
+            if (TestSSLServer.connectV2(isa, TestSSLServer.probeDeadline(config.probeTimeoutMillis, endpointDeadline),
+                config.leanDecode, writeWatchdog) != null) {
+                scan.addServerVersion(SSLV2);
+            }
+        } catch (SocketTimeoutException ste) {
+            scan.addTimedOutProbe(SSLV2);
+        }
+    }
+
+    /**
+     * Probe the SSLv3/TLS versions with the ADAPTIVE strategy. Each probe depends on the previous
+     * answer, so they are sent one after the other. Versions left out of the configuration are
+     * never offered.
+     */
+    private void
+    probeVersionsAdaptively(InetSocketAddress isa, long endpointDeadline, VersionScan scan)
+    {
+        int v = 0x0303;
+        while (v >= 0x0300) {
+            if (!config.versions.contains(v)) {
+                --v;
+                continue;
+            }
+            v = nextAdaptiveProbe(v, probeVersion(isa, v, endpointDeadline, scan));
+        }
+    }
+
+    /**
+     * Next version to offer with the ADAPTIVE strategy, after offering 'offered' and getting
+     * 'negotiated' back (null when the server did not answer). A value below 0x0300 means there
+     * is nothing left to probe.
+     */
+    static int
+    nextAdaptiveProbe(int offered, Integer negotiated)
+    {
+        if (negotiated == null) {
+            return offered - 1;
+        }
+        return Math.min(offered, negotiated) - 1;
+    }
+
+    /**
+     * Send the ClientHellos (and the SSLv2 CLIENT HELLO) to the server on the probe threads of the
+     * scanner, and record the versions the server answered with into the provided scan. The probes
+     * are dealt into at most maxConcurrentProbes chains, each chain sending its probes one after
+     * the other, so that no more connections than that are open to the endpoint.
+     * With the ADAPTIVE strategy, the SSLv3/TLS probes form a single chain which runs alongside
+     * the SSLv2 probe.
+     */
+    private void
+    probeVersionsConcurrently(final InetSocketAddress isa, final long endpointDeadline, final VersionScan scan)
+        throws IOException
+    {
+        List<Callable<Void>> probes = new ArrayList<Callable<Void>>();
+        if (config.strategy == TestSSLServer.ProbeStrategy.ADAPTIVE) {
+            probes.add(new Callable<Void>() {
+                @Override
+                public Void call()
+                {
+                    probeVersionsAdaptively(isa, endpointDeadline, scan);
+                    return null;
+                }
+            });
+        } else {
+            for (int v : config.versions) {
+                if (v == SSLV2) {
+                    continue;
+                }
+                final int version = v;
+                probes.add(new Callable<Void>() {
+                    @Override
+                    public Void call()
+                    {
+                        probeVersion(isa, version, endpointDeadline, scan);
+                        return null;
+                    }
+                });
+            }
+        }
+        if (config.versions.contains(SSLV2)) {
+            probes.add(new Callable<Void>() {
+                @Override
+                public Void call()
+                {
+                    probeSSLv2(isa, endpointDeadline, scan);
+                    return null;
+                }
+            });
+        }
+
+        int numChains = Math.max(1, Math.min(config.maxConcurrentProbes, probes.size()));
+        List<Future<Void>> chains = new ArrayList<Future<Void>>();
+        try {
+            for (int c = 0; c < numChains; c++) {
+                final List<Callable<Void>> chain = new ArrayList<Callable<Void>>();
+                for (int i = c; i < probes.size(); i += numChains) {
+                    chain.add(probes.get(i));
+                }
+                chains.add(probePool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception
+                    {
+                        for (Callable<Void> probe : chain) {
+                            probe.call();
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> f : chains) {
+                f.get();
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while probing " + isa);
+        } catch (ExecutionException ee) {
+            throw new IOException("probe of " + isa + " failed", ee.getCause());
+        } finally {
+            // No-op for completed chains; stops the others on interrupt or failure
+            for (Future<Void> f : chains) {
+                f.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Versions answered by the server, and probes which ran out of time, for one endpoint.
+     * Probes may report concurrently.
+     */
+    private static class VersionScan
+    {
+        final Set<Integer> serverVersions = new TreeSet<Integer>();
+        final Set<Integer> timedOutProbes = new TreeSet<Integer>();
+
+        synchronized void
+        addServerVersion(int version)
+        {
+            serverVersions.add(version);
+        }
+
+        synchronized void
+        addTimedOutProbe(int version)
+        {
+            timedOutProbes.add(version);
+        }
+    }
+}
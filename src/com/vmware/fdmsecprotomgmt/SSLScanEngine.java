@@ -0,0 +1,618 @@
+package com.vmware.fdmsecprotomgmt;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Non-blocking scan engine for sweeping the SSL/TLS protocol versions of many endpoints
+ * (typically "host:8182" of every ESXi host) from a handful of threads.
+ *
+ * Each selector thread drives the ClientHello/ServerHello exchanges of its share of the
+ * endpoints through a single java.nio Selector. Records are framed with TestSSLServer's
+ * OutputRecord and answers are decoded with TestSSLServer's ServerHello/ServerHelloSSLv2
+ * decoders in lean mode, fed from the ByteBuffer the bytes were read into; a probe is done
+ * as soon as the ServerHello itself has arrived. The protocol list reported for an endpoint
+ * is the same as the one returned by TestSSLServer.SecurityProtoScanner.
+ *
+ * Every probe is bounded by a time budget covering connect, ClientHello write and
+ * ServerHello read, and all probes of an endpoint by an endpoint budget. A probe running
+ * out of time is reported as timed out, not as an unsupported version.
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+public class SSLScanEngine
+{
+    public static final int DEFAULT_SELECTOR_THREADS = 4;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 2000; // Open probe connections, across all selector threads
+    public static final int RESOLVER_THREADS = 16; // Host names resolved at the same time, before the scan
+
+    private static final int SSLV2_PROBE = 0x0200;
+    private static final int SELECT_TIMEOUT_MS = 100; // Also the granularity of probe timeouts
+    private static final int INITIAL_READ_BUFFER_LEN = 4096;
+    private static final int MAX_READ_BUFFER_LEN = 4 * (TestSSLServer.MAX_RECORD_LEN + 5);
+
+    private final int selectorThreads;
+    private final int maxInFlight;
+    private final int maxProbesPerEndpoint;
+    private final int probeTimeoutMillis;
+    private final int endpointTimeoutMillis;
+    private final TestSSLServer.ProbeStrategy strategy;
+
+    /**
+     * Constructor
+     */
+    public SSLScanEngine(int selectorThreads, int maxInFlight, int maxProbesPerEndpoint, int probeTimeoutMillis,
+        int endpointTimeoutMillis, TestSSLServer.ProbeStrategy strategy)
+    {
+        this.selectorThreads = Math.max(1, selectorThreads);
+        this.maxInFlight = Math.max(this.selectorThreads, maxInFlight);
+        this.maxProbesPerEndpoint = Math.max(1, maxProbesPerEndpoint);
+        this.probeTimeoutMillis = probeTimeoutMillis;
+        this.endpointTimeoutMillis = endpointTimeoutMillis;
+        this.strategy = strategy;
+    }
+
+    /**
+     * Constructor, with the default probe strategy of TestSSLServer
+     */
+    public SSLScanEngine(int selectorThreads, int maxInFlight, int maxProbesPerEndpoint, int probeTimeoutMillis,
+        int endpointTimeoutMillis)
+    {
+        this(selectorThreads, maxInFlight, maxProbesPerEndpoint, probeTimeoutMillis, endpointTimeoutMillis,
+            TestSSLServer.DEFAULT_PROBE_STRATEGY);
+    }
+
+    /**
+     * Constructor, with the default time budgets of TestSSLServer
+     */
+    public SSLScanEngine(int selectorThreads, int maxInFlight, int maxProbesPerEndpoint)
+    {
+        this(selectorThreads, maxInFlight, maxProbesPerEndpoint, TestSSLServer.DEFAULT_PROBE_TIMEOUT_MS,
+            TestSSLServer.DEFAULT_ENDPOINT_TIMEOUT_MS);
+    }
+
+    /**
+     * Default constructor
+     */
+    public SSLScanEngine()
+    {
+        this(DEFAULT_SELECTOR_THREADS, DEFAULT_MAX_IN_FLIGHT, TestSSLServer.DEFAULT_MAX_PROBES_PER_ENDPOINT);
+    }
+
+    /**
+     * Scan the given port on all hosts. The returned map has one entry per host, in the order given;
+     * see scan(Collection) for the values.
+     */
+    public Map<String, ScanResult>
+    scanHosts(Collection<String> hostNames, int port) throws IOException
+    {
+        List<String> hosts = new ArrayList<String>(hostNames);
+        List<InetSocketAddress> endpoints = resolveEndpoints(hosts, port);
+
+        // Two host names may resolve to the same endpoint, hence results are matched by position
+        List<EndpointScan> allScans = runScans(endpoints);
+        Map<String, ScanResult> hostResults = new LinkedHashMap<String, ScanResult>();
+        for (int i = 0; i < hosts.size(); i++) {
+            hostResults.put(hosts.get(i), allScans.get(i).result());
+        }
+        return hostResults;
+    }
+
+    /**
+     * Resolve the host names on a bounded pool, so that a slow name server does not hold back the
+     * scan host after host. A host name which does not resolve gives an unresolved address, which
+     * the scan reports as having no SSL/TLS server.
+     */
+    private List<InetSocketAddress>
+    resolveEndpoints(List<String> hosts, final int port) throws IOException
+    {
+        List<Callable<InetSocketAddress>> lookups = new ArrayList<Callable<InetSocketAddress>>();
+        for (final String hostName : hosts) {
+            lookups.add(new Callable<InetSocketAddress>() {
+                @Override
+                public InetSocketAddress
+                call()
+                {
+                    return new InetSocketAddress(hostName, port);
+                }
+            });
+        }
+
+        List<InetSocketAddress> endpoints = new ArrayList<InetSocketAddress>();
+        if (lookups.isEmpty()) {
+            return endpoints;
+        }
+        ExecutorService resolverPool = Executors.newFixedThreadPool(Math.min(RESOLVER_THREADS, lookups.size()));
+        try {
+            for (Future<InetSocketAddress> lookup : resolverPool.invokeAll(lookups)) {
+                endpoints.add(lookup.get());
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while resolving the host names to scan");
+        } catch (ExecutionException ee) {
+            throw new IOException("Could not resolve the host names to scan", ee.getCause());
+        } finally {
+            resolverPool.shutdownNow();
+        }
+        return endpoints;
+    }
+
+    /**
+     * Scan all endpoints for the supported protocol versions. The returned map has one entry per
+     * endpoint, in the order given.
+     */
+    public Map<InetSocketAddress, ScanResult>
+    scan(Collection<InetSocketAddress> endpoints) throws IOException
+    {
+        Map<InetSocketAddress, ScanResult> results = new LinkedHashMap<InetSocketAddress, ScanResult>();
+        for (EndpointScan scan : runScans(new ArrayList<InetSocketAddress>(endpoints))) {
+            results.put(scan.isa, scan.result());
+        }
+        return results;
+    }
+
+    /**
+     * Run the probes of all endpoints on the selector threads, and wait for them to complete
+     */
+    private List<EndpointScan>
+    runScans(List<InetSocketAddress> endpoints) throws IOException
+    {
+        List<EndpointScan> allScans = new ArrayList<EndpointScan>();
+        for (InetSocketAddress isa : endpoints) {
+            allScans.add(new EndpointScan(isa));
+        }
+
+        // Spread the endpoints across the selector threads
+        int numWorkers = Math.max(1, Math.min(selectorThreads, allScans.size()));
+        List<SelectorWorker> workers = new ArrayList<SelectorWorker>();
+        for (int i = 0; i < numWorkers; i++) {
+            workers.add(new SelectorWorker((maxInFlight + numWorkers - 1) / numWorkers));
+        }
+        for (int i = 0; i < allScans.size(); i++) {
+            workers.get(i % numWorkers).endpoints.add(allScans.get(i));
+        }
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < workers.size(); i++) {
+            Thread t = new Thread(workers.get(i), "SSLScanEngine-selector-" + (i + 1));
+            t.setDaemon(true);
+            t.start();
+            threads.add(t);
+        }
+        try {
+            for (Thread t : threads) {
+                t.join();
+            }
+        } catch (InterruptedException ie) {
+            for (Thread t : threads) {
+                t.interrupt();
+            }
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the scan to complete");
+        }
+
+        for (SelectorWorker worker : workers) {
+            if (worker.failure != null) {
+                throw worker.failure;
+            }
+        }
+        return allScans;
+    }
+
+    /**
+     * Scan result of one endpoint
+     */
+    public static class ScanResult
+    {
+        /**
+         * Protocol versions as reported by TestSSLServer.SecurityProtoScanner, or null if no
+         * SSL/TLS server answered on the endpoint
+         */
+        public final List<String> protocols;
+
+        /**
+         * Versions whose probe ran out of time; the server may or may not support them
+         */
+        public final List<String> timedOutProbes;
+
+        ScanResult(List<String> protocols, List<String> timedOutProbes)
+        {
+            this.protocols = protocols;
+            this.timedOutProbes = timedOutProbes;
+        }
+
+        public boolean
+        isTimedOut()
+        {
+            return timedOutProbes.size() > 0;
+        }
+    }
+
+    /**
+     * Scan state of a single endpoint: the probes still to be sent, and the versions the server
+     * answered with so far. Only touched by the selector thread owning the endpoint.
+     */
+    private class EndpointScan
+    {
+        final InetSocketAddress isa;
+        final Deque<Integer> pendingProbes = new ArrayDeque<Integer>();
+        final Set<Integer> serverVersions = new TreeSet<Integer>();
+        final Set<Integer> timedOutProbes = new TreeSet<Integer>();
+        long deadline; // Set when the first probe of the endpoint starts
+        int runningProbes;
+        boolean queued; // In the waiting queue of its selector worker
+
+        EndpointScan(InetSocketAddress isa)
+        {
+            this.isa = isa;
+            if (strategy == TestSSLServer.ProbeStrategy.ADAPTIVE) {
+                // The rest of the chain is queued as answers come in, see probeAnswered()
+                pendingProbes.add(0x0303);
+            } else {
+                for (int v = 0x0300; v <= 0x0303; v++) {
+                    pendingProbes.add(v);
+                }
+            }
+            pendingProbes.add(SSLV2_PROBE);
+        }
+
+        /*
+         * Record the outcome of a probe; negotiated is null when the server did not answer.
+         * Returns true if a follow-up probe was queued.
+         */
+        boolean probeAnswered(int version, Integer negotiated, boolean timedOut)
+        {
+            if (negotiated != null) {
+                serverVersions.add(negotiated);
+            } else if (timedOut) {
+                timedOutProbes.add(version);
+            }
+            if (strategy != TestSSLServer.ProbeStrategy.ADAPTIVE || version == SSLV2_PROBE) {
+                return false;
+            }
+            int next = SSLProtocolScanner.nextAdaptiveProbe(version, negotiated);
+            if (next < 0x0300) {
+                return false;
+            }
+            pendingProbes.add(next);
+            return true;
+        }
+
+        boolean canStartProbe()
+        {
+            return !pendingProbes.isEmpty() && runningProbes < maxProbesPerEndpoint;
+        }
+
+        ScanResult result()
+        {
+            List<String> protocolsEnabled = null;
+            if (serverVersions.size() > 0) {
+                protocolsEnabled = TestSSLServer.versionStrings(serverVersions);
+            } else if (timedOutProbes.size() == 0) {
+                System.out.println("No SSL/TLS server at " + isa);
+            }
+            return new ScanResult(protocolsEnabled, TestSSLServer.versionStrings(timedOutProbes));
+        }
+    }
+
+    /**
+     * One ClientHello/ServerHello exchange on a non-blocking channel
+     */
+    private static class Probe
+    {
+        final EndpointScan endpoint;
+        final int version;
+        final SocketChannel channel;
+        final ByteBuffer out;
+        final long deadline;
+        ByteBuffer in;
+
+        /*
+         * The buffers are reused from completed probes when available (they may be null)
+         */
+        Probe(EndpointScan endpoint, int version, SocketChannel channel, long deadline, ByteBuffer reuseOut,
+            ByteBuffer reuseIn)
+        {
+            this.endpoint = endpoint;
+            this.version = version;
+            this.channel = channel;
+            this.deadline = deadline;
+            if (version == SSLV2_PROBE) {
+                out = TestSSLServer.sslv2ClientHello();
+            } else {
+                out = TestSSLServer.makeClientHelloRecord(version, reuseOut);
+            }
+            if (reuseIn != null) {
+                reuseIn.clear();
+                in = reuseIn;
+            } else {
+                in = ByteBuffer.allocate(INITIAL_READ_BUFFER_LEN);
+            }
+        }
+
+        /*
+         * Try to decode the server answer from the bytes received so far. Returns the
+         * negotiated version, or null while the answer is incomplete.
+         */
+        Integer tryDecode() throws IOException
+        {
+            ByteBuffer received = in.duplicate();
+            received.flip();
+            try {
+                if (version == SSLV2_PROBE) {
+                    new TestSSLServer.ServerHelloSSLv2(new TestSSLServer.ByteBufferInputStream(received), true);
+                    return SSLV2_PROBE;
+                }
+                TestSSLServer.ServerHello sh = new TestSSLServer.ServerHello(
+                    new TestSSLServer.ByteBufferInputStream(received), true);
+                return sh.protoVersion;
+            } catch (EOFException eofe) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Selector loop servicing the probes of a subset of the endpoints
+     */
+    private class SelectorWorker implements Runnable
+    {
+        final Deque<EndpointScan> endpoints = new ArrayDeque<EndpointScan>();
+        // Endpoints which still have probes to send, served round-robin. An endpoint stays
+        // in the queue while its per-endpoint cap holds back its remaining probes.
+        final Deque<EndpointScan> waiting = new ArrayDeque<EndpointScan>();
+        // Buffers of completed probes, reused by the next ones; at most one per probe in flight
+        final Deque<ByteBuffer> freeOutBuffers = new ArrayDeque<ByteBuffer>();
+        final Deque<ByteBuffer> freeInBuffers = new ArrayDeque<ByteBuffer>();
+        final int maxWorkerInFlight;
+        int inFlight;
+        IOException failure;
+
+        SelectorWorker(int maxWorkerInFlight)
+        {
+            this.maxWorkerInFlight = maxWorkerInFlight;
+        }
+
+        @Override
+        public void
+        run()
+        {
+            Selector selector = null;
+            try {
+                selector = Selector.open();
+                for (EndpointScan endpoint : endpoints) {
+                    enqueue(endpoint);
+                }
+
+                while (!waiting.isEmpty() || inFlight > 0) {
+                    startProbes(selector);
+                    if (inFlight == 0) {
+                        continue;
+                    }
+                    selector.select(SELECT_TIMEOUT_MS);
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Probe probe = (Probe) key.attachment();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        try {
+                            serviceProbe(key, probe);
+                        } catch (IOException ioe) {
+                            completeProbe(key, probe, null, false);
+                        }
+                    }
+                    expireProbes(selector);
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw new IOException("Selector thread interrupted");
+                    }
+                }
+            } catch (IOException ioe) {
+                failure = ioe;
+            } catch (RuntimeException re) {
+                // Never let a crashed worker pass for a completed scan
+                failure = new IOException("Selector thread failed: " + re, re);
+            } finally {
+                if (selector != null) {
+                    for (SelectionKey key : selector.keys()) {
+                        closeQuietly(((Probe) key.attachment()).channel);
+                    }
+                    closeQuietly(selector);
+                }
+            }
+        }
+
+        private void
+        startProbes(Selector selector) throws IOException
+        {
+            int endpointsToVisit = waiting.size();
+            while (inFlight < maxWorkerInFlight && endpointsToVisit-- > 0) {
+                EndpointScan endpoint = waiting.poll();
+                endpoint.queued = false;
+                if (endpoint.deadline == 0) {
+                    endpoint.deadline = System.currentTimeMillis() + endpointTimeoutMillis;
+                } else if (System.currentTimeMillis() >= endpoint.deadline) {
+                    // Endpoint budget spent: the probes not sent yet are timed out as well
+                    endpoint.timedOutProbes.addAll(endpoint.pendingProbes);
+                    endpoint.pendingProbes.clear();
+                }
+                while (inFlight < maxWorkerInFlight && endpoint.canStartProbe()) {
+                    int version = endpoint.pendingProbes.poll();
+                    ++endpoint.runningProbes;
+                    ++inFlight;
+                    openProbe(selector, endpoint, version);
+                }
+                if (!endpoint.pendingProbes.isEmpty()) {
+                    enqueue(endpoint);
+                }
+            }
+        }
+
+        private void
+        enqueue(EndpointScan endpoint)
+        {
+            if (!endpoint.queued) {
+                endpoint.queued = true;
+                waiting.add(endpoint);
+            }
+        }
+
+        private void
+        openProbe(Selector selector, EndpointScan endpoint, int version) throws IOException
+        {
+            SocketChannel channel = SocketChannel.open();
+            Probe probe = new Probe(endpoint, version, channel,
+                TestSSLServer.probeDeadline(probeTimeoutMillis, endpoint.deadline),
+                version == SSLV2_PROBE ? null : freeOutBuffers.poll(), freeInBuffers.poll());
+            if (endpoint.isa.isUnresolved()) {
+                // Host name did not resolve, connect() would throw an unchecked exception
+                completeProbe(null, probe, null, false);
+                return;
+            }
+            try {
+                channel.configureBlocking(false);
+                if (channel.connect(endpoint.isa)) {
+                    channel.register(selector, SelectionKey.OP_WRITE, probe);
+                } else {
+                    channel.register(selector, SelectionKey.OP_CONNECT, probe);
+                }
+            } catch (IOException ioe) {
+                // Unresolved or unreachable endpoint
+                completeProbe(null, probe, null, false);
+            }
+        }
+
+        private void
+        serviceProbe(SelectionKey key, Probe probe) throws IOException
+        {
+            if (key.isConnectable()) {
+                if (probe.channel.finishConnect()) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                }
+                return;
+            }
+
+            if (key.isWritable()) {
+                probe.channel.write(probe.out);
+                if (!probe.out.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+                return;
+            }
+
+            if (key.isReadable()) {
+                if (!probe.in.hasRemaining()) {
+                    if (probe.in.capacity() >= MAX_READ_BUFFER_LEN) {
+                        throw new IOException("Server answer too large");
+                    }
+                    ByteBuffer larger = ByteBuffer.allocate(probe.in.capacity() * 2);
+                    probe.in.flip();
+                    larger.put(probe.in);
+                    probe.in = larger;
+                }
+                int rlen = probe.channel.read(probe.in);
+                Integer negotiated = probe.tryDecode();
+                if (negotiated != null) {
+                    completeProbe(key, probe, negotiated, false);
+                } else if (rlen < 0) {
+                    throw new EOFException();
+                }
+            }
+        }
+
+        /*
+         * Time out the probes whose deadline has passed, whatever phase they are in
+         */
+        private void
+        expireProbes(Selector selector)
+        {
+            long now = System.currentTimeMillis();
+            for (SelectionKey key : selector.keys()) {
+                Probe probe = (Probe) key.attachment();
+                if (key.isValid() && now >= probe.deadline) {
+                    completeProbe(key, probe, null, true);
+                }
+            }
+        }
+
+        private void
+        completeProbe(SelectionKey key, Probe probe, Integer negotiated, boolean timedOut)
+        {
+            if (key != null) {
+                key.cancel();
+            }
+            closeQuietly(probe.channel);
+            --inFlight;
+            if (probe.version != SSLV2_PROBE) {
+                freeOutBuffers.add(probe.out);
+            }
+            if (probe.in.capacity() == INITIAL_READ_BUFFER_LEN) {
+                freeInBuffers.add(probe.in);
+            }
+
+            EndpointScan endpoint = probe.endpoint;
+            --endpoint.runningProbes;
+            if (endpoint.probeAnswered(probe.version, negotiated, timedOut)) {
+                // The endpoint may have left the waiting queue with nothing more to send
+                enqueue(endpoint);
+            }
+        }
+    }
+
+    private static void
+    closeQuietly(Closeable c)
+    {
+        try {
+            c.close();
+        } catch (IOException ioe) {
+            // ignored
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.vmware.fdmsecprotomgmt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Cache of security protocol scan results, keyed by endpoint ("host:port").
+ *
+ * A cluster run looks at the same FDM endpoints before the change, after the change and
+ * again when restoring the cluster. An entry is served until its TTL runs out, or until it
+ * is invalidated because the tool itself reconfigured HA on the host. Timed out scans and
+ * endpoints with no SSL/TLS server are never cached.
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+public class ScanResultCache
+{
+    public static final long DEFAULT_TTL_MS = 10 * 60 * 1000; // 10 Minutes
+
+    private final long ttlMillis;
+    private final ConcurrentMap<String, CachedScan> entries = new ConcurrentHashMap<String, CachedScan>();
+
+    /**
+     * Constructor
+     */
+    public ScanResultCache(long ttlMillis)
+    {
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Protocols found on the endpoint by the last scan, or null if there is no valid entry
+     */
+    public List<String>
+    get(String host, int port)
+    {
+        String key = endpointKey(host, port);
+        CachedScan cached = entries.get(key);
+        if (cached == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() - cached.scanTime >= ttlMillis) {
+            entries.remove(key, cached);
+            return null;
+        }
+        return cached.protocols;
+    }
+
+    public void
+    put(String host, int port, List<String> protocols)
+    {
+        if (protocols == null || ttlMillis <= 0) {
+            return;
+        }
+        entries.put(endpointKey(host, port),
+            new CachedScan(Collections.unmodifiableList(new ArrayList<String>(protocols))));
+    }
+
+    /**
+     * Drop the entry of the endpoint, e.g. after its service was reconfigured
+     */
+    public void
+    invalidate(String host, int port)
+    {
+        entries.remove(endpointKey(host, port));
+    }
+
+    public void
+    clear()
+    {
+        entries.clear();
+    }
+
+    private static String
+    endpointKey(String host, int port)
+    {
+        return host.toLowerCase() + ":" + port;
+    }
+
+    /**
+     * Scan result along with the time it was taken
+     */
+    private static class CachedScan
+    {
+        final List<String> protocols;
+        final long scanTime;
+
+        CachedScan(List<String> protocols)
+        {
+            this.protocols = protocols;
+            this.scanTime = System.currentTimeMillis();
+        }
+    }
+}
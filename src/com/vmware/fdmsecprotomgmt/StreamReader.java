@@ -1 +1,349 @@
-package com.vmware.fdmsecprotomgmt;import java.io.BufferedReader;import java.io.IOException;/** * Utility class used along with SSHUtil class for handling the stream data that * gets generated during remote command execution on hosts. * * Copyright (c) 2016 * * Permission is hereby granted, free of charge, to any person * obtaining a copy of this software and associated documentation files * (the "Software"), to deal in the Software without restriction, * including without limitation the rights to use, copy, modify, merge, * publish, distribute, sublicense, and/or sell copies of the Software, * and to permit persons to whom the Software is furnished to do so, * subject to the following conditions: * * @author VMware * @author Gururaja Hegdal (ghegdal@vmware.com) * @version 1.0 * * The above copyright notice and this permission notice shall be * included in all copies or substantial portions of the Software. * * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR * OTHER DEALINGS IN THE SOFTWARE. */public class StreamReader implements Runnable{    private final BufferedReader br;    private String name;    private boolean keepThreadRunning = true;    private StringBuffer dataStream = new StringBuffer();    /**     * Constructor     */    public StreamReader(BufferedReader br, String name)    {        this.br = br;        this.name = name;    }    @Override    public void    run()    {        /*         * normally would read in while here, but these threads never get any data -         * they are blocked on the first read() call forever.         */        System.out.println("Thread Started. name: " + name);        try {            String temp = null;            while ((temp = br.readLine()) != null && keepThreadRunning) {                System.out.println(name + ". " + temp);                dataStream.append(temp + "\n");            }        } catch (Exception ex) {            System.err.println("Caught following exception" + ex);        } finally {            try {                br.close();            } catch (IOException ex) {                ex.printStackTrace();            }        }        System.out.println("Thread Stopped. name:" + name);    }    public void    stopThread()    {        keepThreadRunning = false;    }    /**     * Gets DataStream from StreamReader     *     * @return dataStream     */    public String    getDataStream()    {        return dataStream.toString();    }}
\ No newline at end of file
+package com.vmware.fdmsecprotomgmt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import ch.ethz.ssh2.ChannelCondition;
+import ch.ethz.ssh2.Session;
+
+/**
+ * Utility class used along with SSHUtil class for handling the stream data that
+ * gets generated during remote command execution on hosts.
+ *
+ * Both standard output and standard error of a session are drained by the calling thread,
+ * woken up by the session (waitForCondition) whenever either stream has data or reaches EOF.
+ * No reader threads are started and no fixed sleeps are needed to collect the output.
+ *
+ * By default all data is kept. In streaming mode, complete lines are handed to a consumer as
+ * they arrive, up to a byte cap per stream, and only the last lines of each stream are kept.
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author VMware
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+public class StreamReader
+{
+    // Once EOF is seen, time allowed for the exit status to arrive
+    private static final long EXIT_STATUS_WAIT_MS = 2000;
+    private static final int READ_BUFFER_SIZE = 8192;
+    // Longer lines are handed out in pieces of this size, to bound the memory of a partial line
+    private static final int MAX_LINE_BYTES = 64 * 1024;
+
+    private final Session session;
+    private final InputStream stdout;
+    private final InputStream stderr;
+    private final StreamSink outputSink;
+    private final StreamSink errorSink;
+    private final LineConsumer lineConsumer;
+    private final long maxBytes;
+    private final int tailLines;
+    private final byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+
+    /**
+     * Receives the lines of standard output and standard error as they arrive, on the thread
+     * which drains the session
+     */
+    public interface LineConsumer
+    {
+        void
+        lineReceived(String line, boolean fromStderr);
+    }
+
+    /**
+     * Constructor, keeps all data of both streams
+     */
+    public StreamReader(Session session)
+    {
+        this(session, null, -1, -1);
+    }
+
+    /**
+     * Constructor for streaming mode
+     *
+     * @param session session to drain
+     * @param lineConsumer receives the lines as they arrive, may be null
+     * @param maxBytes max bytes per stream handed to the consumer, negative for no cap. Lines past
+     *            the cap are dropped, and the stream is marked truncated
+     * @param tailLines number of last lines kept per stream; negative to keep all data
+     */
+    public StreamReader(Session session, LineConsumer lineConsumer, long maxBytes, int tailLines)
+    {
+        this.session = session;
+        this.stdout = session.getStdout();
+        this.stderr = session.getStderr();
+        this.lineConsumer = lineConsumer;
+        this.maxBytes = maxBytes;
+        this.tailLines = tailLines;
+        this.outputSink = new StreamSink(false);
+        this.errorSink = new StreamSink(true);
+    }
+
+    /**
+     * Drain standard output and standard error until the remote end sends EOF, or the timeout runs out
+     *
+     * @return true, if EOF was reached; false, on timeout
+     * @throws IOException
+     */
+    public boolean
+    drain(long timeoutMillis) throws IOException
+    {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+
+        while (true) {
+            if (readAvailable(stdout, outputSink) | readAvailable(stderr, errorSink)) {
+                continue;
+            }
+
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                finishLines();
+                return false;
+            }
+
+            int conditions = session.waitForCondition(
+                ChannelCondition.STDOUT_DATA | ChannelCondition.STDERR_DATA | ChannelCondition.EOF
+                    | ChannelCondition.CLOSED,
+                remaining);
+            if ((conditions & ChannelCondition.TIMEOUT) != 0) {
+                finishLines();
+                return false;
+            }
+            if ((conditions & (ChannelCondition.STDOUT_DATA | ChannelCondition.STDERR_DATA)) != 0) {
+                continue;
+            }
+            if ((conditions & (ChannelCondition.EOF | ChannelCondition.CLOSED)) != 0) {
+                finishLines();
+                // All data read; give the exit status a chance to arrive, without waiting past the deadline
+                long exitWait = Math.min(EXIT_STATUS_WAIT_MS, deadline - System.currentTimeMillis());
+                if (exitWait > 0) {
+                    session.waitForCondition(ChannelCondition.EXIT_STATUS | ChannelCondition.CLOSED, exitWait);
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Gets standard output data read so far; in streaming mode, only the kept last lines
+     */
+    public String
+    getOutputData()
+    {
+        return outputSink.getData();
+    }
+
+    /**
+     * Gets standard error data read so far; in streaming mode, only the kept last lines
+     */
+    public String
+    getErrorData()
+    {
+        return errorSink.getData();
+    }
+
+    /**
+     * Gets the kept last lines of standard output
+     */
+    public List<String>
+    getOutputTail()
+    {
+        return outputSink.getTail();
+    }
+
+    /**
+     * Gets the kept last lines of standard error
+     */
+    public List<String>
+    getErrorTail()
+    {
+        return errorSink.getTail();
+    }
+
+    /**
+     * Whether standard output went past the byte cap
+     */
+    public boolean
+    isOutputTruncated()
+    {
+        return outputSink.truncated;
+    }
+
+    /**
+     * Whether standard error went past the byte cap
+     */
+    public boolean
+    isErrorTruncated()
+    {
+        return errorSink.truncated;
+    }
+
+    /**
+     * Read whatever the stream has without blocking
+     *
+     * @return true, if anything was read
+     */
+    private boolean
+    readAvailable(InputStream in, StreamSink sink) throws IOException
+    {
+        boolean readSome = false;
+        int available;
+        while ((available = in.available()) > 0) {
+            int read = in.read(readBuffer, 0, Math.min(available, readBuffer.length));
+            if (read <= 0) {
+                break;
+            }
+            sink.write(readBuffer, read);
+            readSome = true;
+        }
+        return readSome;
+    }
+
+    /**
+     * Hand out the last, unterminated lines of both streams
+     */
+    private void
+    finishLines()
+    {
+        outputSink.endLine();
+        errorSink.endLine();
+    }
+
+    /**
+     * Data of one stream: either kept whole, or split into lines that go to the consumer and the tail
+     */
+    private class StreamSink
+    {
+        final boolean fromStderr;
+        final ByteArrayOutputStream allData;
+        final ByteArrayOutputStream partialLine;
+        final Deque<String> tail;
+        long bytesConsumed = 0;
+        boolean truncated = false;
+
+        StreamSink(boolean fromStderr)
+        {
+            this.fromStderr = fromStderr;
+            boolean keepAll = tailLines < 0;
+            this.allData = keepAll ? new ByteArrayOutputStream() : null;
+            this.partialLine = (lineConsumer != null || !keepAll) ? new ByteArrayOutputStream() : null;
+            this.tail = keepAll ? null : new ArrayDeque<String>(Math.min(tailLines, 1024));
+        }
+
+        void
+        write(byte[] buf, int len)
+        {
+            if (allData != null) {
+                allData.write(buf, 0, len);
+            }
+            if (partialLine == null) {
+                return;
+            }
+            int lineStart = 0;
+            for (int i = 0; i < len; i++) {
+                if (buf[i] == '\n') {
+                    partialLine.write(buf, lineStart, i - lineStart);
+                    emitLine();
+                    lineStart = i + 1;
+                } else if (partialLine.size() + (i - lineStart) >= MAX_LINE_BYTES) {
+                    partialLine.write(buf, lineStart, i - lineStart);
+                    emitLine();
+                    lineStart = i;
+                }
+            }
+            partialLine.write(buf, lineStart, len - lineStart);
+        }
+
+        /**
+         * Hand out the unterminated line, if any
+         */
+        void
+        endLine()
+        {
+            if (partialLine != null && partialLine.size() > 0) {
+                emitLine();
+            }
+        }
+
+        void
+        emitLine()
+        {
+            String line = partialLine.toString();
+            int lineBytes = partialLine.size() + 1;
+            partialLine.reset();
+            if (line.endsWith("\r")) {
+                line = line.substring(0, line.length() - 1);
+            }
+
+            if (tail != null && tailLines > 0) {
+                if (tail.size() == tailLines) {
+                    tail.poll();
+                }
+                tail.add(line);
+            }
+            if (lineConsumer != null && !truncated) {
+                if (maxBytes >= 0 && bytesConsumed + lineBytes > maxBytes) {
+                    truncated = true;
+                } else {
+                    bytesConsumed += lineBytes;
+                    lineConsumer.lineReceived(line, fromStderr);
+                }
+            }
+        }
+
+        String
+        getData()
+        {
+            if (allData != null) {
+                return allData.toString();
+            }
+            StringBuilder data = new StringBuilder();
+            for (String line : tail) {
+                data.append(line).append('\n');
+            }
+            return data.toString();
+        }
+
+        List<String>
+        getTail()
+        {
+            if (tail != null) {
+                return new ArrayList<String>(tail);
+            }
+            List<String> lines = new ArrayList<String>();
+            if (allData.size() == 0) {
+                return lines;
+            }
+            for (String line : allData.toString().split("\r?\n")) {
+                lines.add(line);
+            }
+            return lines;
+        }
+    }
+}
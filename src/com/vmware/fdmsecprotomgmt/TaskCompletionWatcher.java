@@ -0,0 +1,201 @@
+package com.vmware.fdmsecprotomgmt;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.vmware.vim25.LocalizedMethodFault;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.ObjectUpdate;
+import com.vmware.vim25.PropertyChange;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertyFilterUpdate;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.TaskInfoState;
+import com.vmware.vim25.UpdateSet;
+import com.vmware.vim25.WaitOptions;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.PropertyFilter;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.mo.Task;
+
+/**
+ * Waits for a batch of vCenter tasks to finish, driven by the PropertyCollector update stream.
+ *
+ * A single filter watches info.state (and info.error) of every outstanding task, and
+ * WaitForUpdatesEx returns as soon as any of them changes. Each task is reported to the
+ * listener the moment it succeeds or fails, instead of being polled on a fixed interval.
+ * A private PropertyCollector is used, so that the session's shared collector is not disturbed.
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+public class TaskCompletionWatcher
+{
+    private static final int MAX_WAIT_SECS_PER_UPDATE = 60;
+    private static final String[] TASK_PROPERTIES = new String[] { "info.state", "info.error" };
+
+    private final ServiceInstance si;
+
+    /**
+     * Gets notified once for each task that reaches a terminal state
+     */
+    public interface TaskCompletionListener
+    {
+        void
+        taskCompleted(String name, TaskInfoState state, LocalizedMethodFault error);
+    }
+
+    /**
+     * Constructor
+     */
+    public TaskCompletionWatcher(ServiceInstance si)
+    {
+        this.si = si;
+    }
+
+    /**
+     * Wait for all the given tasks to reach success or error, or for the timeout to run out.
+     *
+     * @param tasks tasks to watch, keyed by a caller supplied name (e.g. host name)
+     * @param timeoutSecs overall time budget for the whole batch
+     * @param listener notified as each task completes, may be null
+     * @return last known state of each task; tasks that did not finish in time are left
+     *         as queued or running
+     */
+    public Map<String, TaskInfoState>
+    waitForTasks(Map<String, Task> tasks, int timeoutSecs, TaskCompletionListener listener) throws Exception
+    {
+        Map<String, TaskInfoState> taskStates = new LinkedHashMap<String, TaskInfoState>();
+        if (tasks.isEmpty()) {
+            return taskStates;
+        }
+
+        // Tasks are identified in the updates by their managed object reference
+        Map<String, String> pendingTasks = new HashMap<String, String>();
+        ObjectSpec[] objectSpecs = new ObjectSpec[tasks.size()];
+        int i = 0;
+        for (Map.Entry<String, Task> entry : tasks.entrySet()) {
+            ManagedObjectReference taskMor = entry.getValue().getMOR();
+            pendingTasks.put(taskMor.getVal(), entry.getKey());
+            taskStates.put(entry.getKey(), TaskInfoState.queued);
+
+            ObjectSpec objectSpec = new ObjectSpec();
+            objectSpec.setObj(taskMor);
+            objectSpec.setSkip(Boolean.FALSE);
+            objectSpecs[i++] = objectSpec;
+        }
+
+        PropertySpec propertySpec = new PropertySpec();
+        propertySpec.setType("Task");
+        propertySpec.setPathSet(TASK_PROPERTIES);
+
+        PropertyFilterSpec filterSpec = new PropertyFilterSpec();
+        filterSpec.setObjectSet(objectSpecs);
+        filterSpec.setPropSet(new PropertySpec[] { propertySpec });
+
+        PropertyCollector taskCollector = si.getPropertyCollector().createPropertyCollector();
+        PropertyFilter taskFilter = null;
+        Map<String, LocalizedMethodFault> taskErrors = new HashMap<String, LocalizedMethodFault>();
+        long deadline = System.currentTimeMillis() + (timeoutSecs * 1000L);
+
+        try {
+            taskFilter = taskCollector.createFilter(filterSpec, true);
+            String version = "";
+
+            while (!pendingTasks.isEmpty()) {
+                long remainingSecs = (deadline - System.currentTimeMillis() + 999) / 1000;
+                if (remainingSecs <= 0) {
+                    break;
+                }
+
+                WaitOptions waitOptions = new WaitOptions();
+                waitOptions.setMaxWaitSeconds((int) Math.min(remainingSecs, MAX_WAIT_SECS_PER_UPDATE));
+                UpdateSet updateSet = taskCollector.waitForUpdatesEx(version, waitOptions);
+                if (updateSet == null) {
+                    // Nothing changed within this wait
+                    continue;
+                }
+                version = updateSet.getVersion();
+
+                PropertyFilterUpdate[] filterUpdates = updateSet.getFilterSet();
+                if (filterUpdates == null) {
+                    continue;
+                }
+                for (PropertyFilterUpdate filterUpdate : filterUpdates) {
+                    ObjectUpdate[] objectUpdates = filterUpdate.getObjectSet();
+                    if (objectUpdates == null) {
+                        continue;
+                    }
+                    for (ObjectUpdate objectUpdate : objectUpdates) {
+                        String name = pendingTasks.get(objectUpdate.getObj().getVal());
+                        if (name == null || objectUpdate.getChangeSet() == null) {
+                            continue;
+                        }
+
+                        for (PropertyChange change : objectUpdate.getChangeSet()) {
+                            if ("info.error".equals(change.getName())) {
+                                if (change.getVal() instanceof LocalizedMethodFault) {
+                                    taskErrors.put(name, (LocalizedMethodFault) change.getVal());
+                                }
+                            } else if ("info.state".equals(change.getName()) && change.getVal() != null) {
+                                taskStates.put(name, toTaskInfoState(change.getVal()));
+                            }
+                        }
+
+                        TaskInfoState state = taskStates.get(name);
+                        if (TaskInfoState.success.equals(state) || TaskInfoState.error.equals(state)) {
+                            pendingTasks.remove(objectUpdate.getObj().getVal());
+                            if (listener != null) {
+                                listener.taskCompleted(name, state, taskErrors.get(name));
+                            }
+                        }
+                    }
+                }
+            }
+        } finally {
+            try {
+                if (taskFilter != null) {
+                    taskFilter.destroyPropertyFilter();
+                }
+                taskCollector.destroyPropertyCollector();
+            } catch (Exception e) {
+                System.err.println("Caught exception while destroying task property collector");
+            }
+        }
+
+        return taskStates;
+    }
+
+    private static TaskInfoState
+    toTaskInfoState(Object val)
+    {
+        if (val instanceof TaskInfoState) {
+            return (TaskInfoState) val;
+        }
+        return TaskInfoState.valueOf(val.toString());
+    }
+}
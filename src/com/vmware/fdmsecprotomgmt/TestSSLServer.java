@@ -59,62 +59,137 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Formatter;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TestSSLServer {
 
+    /*
+     * Default cap on the number of connections opened at the same time
+     * to a single endpoint, when its versions are probed concurrently.
+     */
+    static final int DEFAULT_MAX_PROBES_PER_ENDPOINT = 3;
+
+    /*
+     * Default time budgets, in milliseconds. A single probe (connect,
+     * ClientHello write and ServerHello read) must complete within the
+     * probe budget; all the probes of an endpoint must complete within
+     * the endpoint budget.
+     */
+    static final int DEFAULT_PROBE_TIMEOUT_MS = 10000;
+    static final int DEFAULT_ENDPOINT_TIMEOUT_MS = 30000;
+
+    /*
+     * How the SSLv3/TLS versions of an endpoint are probed.
+     *
+     * EXHAUSTIVE sends one ClientHello per version, from SSLv3 to
+     * TLS 1.2.
+     *
+     * ADAPTIVE offers the highest version first. A server answers with
+     * the highest version it supports which is not above the offered
+     * one, so every version between the negotiated and the offered one
+     * is known to be unsupported; the next probe offers the version
+     * just below the negotiated one. A server which rejects a version
+     * gets the next lower one offered, so that a server supporting
+     * only a few versions costs few handshakes. The set of versions
+     * found is the same as with EXHAUSTIVE.
+     *
+     * The SSLv2 probe is sent with both strategies.
+     */
+    public static enum ProbeStrategy {
+        EXHAUSTIVE, ADAPTIVE
+    }
+
+    static final ProbeStrategy DEFAULT_PROBE_STRATEGY = ProbeStrategy.ADAPTIVE;
+
+    /*
+     * Defaults for the cipher suite audit: connections open at the same
+     * time to one endpoint, and time budget of the whole audit of an
+     * endpoint, in milliseconds (one handshake per supported suite).
+     */
+    static final int DEFAULT_MAX_AUDIT_CONNECTIONS_PER_ENDPOINT = 4;
+    static final int DEFAULT_AUDIT_TIMEOUT_MS = 120000;
+
     public static List<String> SecurityProtoScanner(String hostName, Integer portNumber) throws IOException {
-        List<String> protocolsEnabled = null;
-        String name = hostName;
-        int port = portNumber;
-        InetSocketAddress isa = new InetSocketAddress(name, port);
+        return SecurityProtoScanner(hostName, portNumber, 1);
+    }
 
-        Set<Integer> sv = new TreeSet<Integer>();
-        boolean compress = false;
-        for (int v = 0x0300; v <= 0x0303; v++) {
-            ServerHello sh = connect(isa, v, CIPHER_SUITES.keySet());
-            if (sh == null) {
-                continue;
-            }
-            sv.add(sh.protoVersion);
-            if (sh.compression == 1) {
-                compress = true;
-            }
-        }
+    public static List<String> SecurityProtoScanner(String hostName, Integer portNumber, int maxConcurrentProbes)
+        throws IOException {
+        return SecurityProtoScanner(hostName, portNumber, maxConcurrentProbes, DEFAULT_PROBE_TIMEOUT_MS,
+            DEFAULT_ENDPOINT_TIMEOUT_MS);
+    }
 
-        ServerHelloSSLv2 sh2 = connectV2(isa);
+    /*
+     * Scan the endpoint for the supported protocol versions. With
+     * maxConcurrentProbes > 1, the SSLv3/TLS probes and the SSLv2 probe
+     * are sent concurrently, with at most maxConcurrentProbes connections
+     * open to the endpoint at any time; otherwise they are sent one
+     * after the other. The returned list is the same in both modes.
+     *
+     * If any probe runs out of its time budget, a ScanTimeoutException
+     * is thrown instead of returning a list which would silently miss
+     * that version. See SSLProtocolScanner.scan().
+     */
+    public static List<String> SecurityProtoScanner(String hostName, Integer portNumber, int maxConcurrentProbes,
+        int probeTimeoutMillis, int endpointTimeoutMillis) throws IOException {
+        return SecurityProtoScanner(hostName, portNumber, maxConcurrentProbes, probeTimeoutMillis,
+            endpointTimeoutMillis, DEFAULT_PROBE_STRATEGY);
+    }
 
-        if (sh2 != null) {
-            sv.add(0x0200);
-        }
+    public static List<String> SecurityProtoScanner(String hostName, Integer portNumber, int maxConcurrentProbes,
+        int probeTimeoutMillis, int endpointTimeoutMillis, ProbeStrategy strategy) throws IOException {
+        List<String> protocolsEnabled = null;
+        String name = hostName;
+        int port = portNumber;
 
-        if (sv.size() == 0) {
-            System.out.println("No SSL/TLS server at " + isa);
-            return protocolsEnabled;
-        }
-        protocolsEnabled = new ArrayList<String>();
-        // System.out.print("Supported versions:");
-        for (int v : sv) {
-            // System.out.print(" ");
-            // System.out.print(versionString(v));
-            protocolsEnabled.add(versionString(v));
+        /*
+         * The static entry points are kept for existing callers; they
+         * scan through a scanner configured from their arguments. Code
+         * scanning many endpoints should share an SSLProtocolScanner.
+         */
+        SSLProtocolScanner scanner = new SSLProtocolScanner(new SSLProtocolScanner.ScannerConfig(
+            maxConcurrentProbes, probeTimeoutMillis, endpointTimeoutMillis, strategy,
+            SSLProtocolScanner.ALL_VERSIONS, CIPHER_SUITES.keySet(), true));
+        try {
+            protocolsEnabled = scanner.scan(name, port);
+        } finally {
+            scanner.close();
         }
 
         /*
@@ -199,6 +274,308 @@ public class TestSSLServer {
         return protocolsEnabled;
     } // End of ProtoScanner Method
 
+    /*
+     * Audit the cipher suites accepted by the endpoint, for every
+     * protocol version it supports. The versions are scanned first
+     * (see SecurityProtoScanner); then the suites of each version are
+     * enumerated as in supportedSuites, one handshake per accepted
+     * suite. To run in parallel, the candidate suites of a version are
+     * split in disjoint partitions, each enumerated on its own: the
+     * server picks an accepted suite among the offered ones whenever
+     * there is one, so the union over the partitions is the same set
+     * as a single enumeration. At most maxConcurrentConnections
+     * handshakes run at the same time against the endpoint.
+     *
+     * A ScanTimeoutException is thrown if the version scan runs out of
+     * time; suite enumerations running out of time are reported as
+     * incomplete in the audit.
+     */
+    public static CipherSuiteAudit CipherSuiteAuditor(String hostName, Integer portNumber,
+        int maxConcurrentConnections, int probeTimeoutMillis, int auditTimeoutMillis) throws IOException {
+        final InetSocketAddress isa = new InetSocketAddress(hostName, portNumber);
+        final long auditDeadline = System.currentTimeMillis() + auditTimeoutMillis;
+        final int probeTimeout = probeTimeoutMillis;
+
+        SSLProtocolScanner scanner = new SSLProtocolScanner(new SSLProtocolScanner.ScannerConfig(
+            maxConcurrentConnections, probeTimeoutMillis, auditTimeoutMillis));
+        final ScheduledExecutorService writeWatchdog = scanner.getWriteWatchdog();
+        try {
+            Set<Integer> serverVersions = scanner.scanVersions(isa, auditDeadline);
+
+            final CipherSuiteAudit audit = new CipherSuiteAudit();
+            List<Callable<Void>> enumerations = new ArrayList<Callable<Void>>();
+            int tlsVersions = serverVersions.contains(0x0200) ? serverVersions.size() - 1 : serverVersions.size();
+            // Twice as many partitions as connections, so that quickly
+            // exhausted partitions do not leave the pool idle.
+            int partitions = tlsVersions == 0 ? 1
+                : Math.max(1, (2 * maxConcurrentConnections + tlsVersions - 1) / tlsVersions);
+            for (final int v : serverVersions) {
+                if (v == 0x0200) {
+                    enumerations.add(new Callable<Void>() {
+                        @Override
+                        public Void call() {
+                            try {
+                                ServerHelloSSLv2 sh2 = connectV2(isa, probeDeadline(probeTimeout, auditDeadline), false,
+                                    writeWatchdog);
+                                if (sh2 != null) {
+                                    for (int c : sh2.cipherSuites) {
+                                        audit.addSuite(v, c);
+                                    }
+                                }
+                            } catch (SocketTimeoutException ste) {
+                                audit.addIncompleteVersion(v);
+                            }
+                            return null;
+                        }
+                    });
+                    continue;
+                }
+                audit.addVersion(v);
+                List<List<Integer>> parts = new ArrayList<List<Integer>>();
+                for (int i = 0; i < partitions; i++) {
+                    parts.add(new ArrayList<Integer>());
+                }
+                int i = 0;
+                for (int suite : CIPHER_SUITES.keySet()) {
+                    parts.get(i++ % partitions).add(suite);
+                }
+                for (final List<Integer> part : parts) {
+                    enumerations.add(new Callable<Void>() {
+                        @Override
+                        public Void call() {
+                            try {
+                                for (int suite : supportedSuites(isa, v, part, probeTimeout, auditDeadline,
+                                    writeWatchdog)) {
+                                    audit.addSuite(v, suite);
+                                }
+                            } catch (SocketTimeoutException ste) {
+                                audit.addIncompleteVersion(v);
+                            }
+                            return null;
+                        }
+                    });
+                }
+            }
+
+            ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(maxConcurrentConnections,
+                enumerations.size())), PROBE_THREAD_FACTORY);
+            try {
+                for (Future<Void> f : pool.invokeAll(enumerations)) {
+                    f.get();
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while auditing " + isa);
+            } catch (ExecutionException ee) {
+                throw new IOException("cipher suite audit of " + isa + " failed", ee.getCause());
+            } finally {
+                pool.shutdownNow();
+            }
+
+            for (int v : audit.suites.keySet()) {
+                try {
+                    if (!audit.beastVulnerable && testBEAST(isa, v, audit.suites.get(v),
+                        probeDeadline(probeTimeout, auditDeadline), writeWatchdog)) {
+                        audit.beastVulnerable = true;
+                    }
+                } catch (SocketTimeoutException ste) {
+                    audit.addIncompleteVersion(v);
+                }
+            }
+            return audit;
+        } finally {
+            scanner.close();
+        }
+    }
+
+    /*
+     * Same enumeration as supportedSuites(), restricted to the provided
+     * candidate suites and bounded by the time budgets. The ServerHellos
+     * are decoded in lean mode, so no certificate is collected.
+     */
+    static Set<Integer> supportedSuites(InetSocketAddress isa, int version, Collection<Integer> candidates,
+        int probeTimeoutMillis, long endpointDeadline, ScheduledExecutorService writeWatchdog)
+        throws SocketTimeoutException {
+        Set<Integer> cs = new TreeSet<Integer>(candidates);
+        Set<Integer> rs = new TreeSet<Integer>();
+        while (cs.size() > 0) {
+            ServerHello sh = connect(isa, version, cs, probeDeadline(probeTimeoutMillis, endpointDeadline), true,
+                writeWatchdog);
+            if (sh == null || !cs.contains(sh.cipherSuite)) {
+                break;
+            }
+            cs.remove(sh.cipherSuite);
+            rs.add(sh.cipherSuite);
+        }
+        return rs;
+    }
+
+    /*
+     * Cipher suites accepted by one endpoint, per protocol version.
+     * Enumerations may report concurrently.
+     */
+    public static class CipherSuiteAudit {
+
+        final Map<Integer, Set<Integer>> suites = new TreeMap<Integer, Set<Integer>>();
+        final Set<Integer> incompleteVersions = new TreeSet<Integer>();
+        boolean beastVulnerable;
+
+        synchronized void addVersion(int version) {
+            if (!suites.containsKey(version)) {
+                suites.put(version, new TreeSet<Integer>());
+            }
+        }
+
+        synchronized void addSuite(int version, int suite) {
+            addVersion(version);
+            suites.get(version).add(suite);
+        }
+
+        synchronized void addIncompleteVersion(int version) {
+            incompleteVersions.add(version);
+        }
+
+        /*
+         * Names of the accepted suites, per protocol version.
+         */
+        public synchronized Map<String, List<String>> getSuitesByVersion() {
+            Map<String, List<String>> byVersion = new LinkedHashMap<String, List<String>>();
+            for (Map.Entry<Integer, Set<Integer>> e : suites.entrySet()) {
+                List<String> names = new ArrayList<String>();
+                for (int suite : e.getValue()) {
+                    names.add(e.getKey() == 0x0200 ? cipherSuiteStringV2(suite) : cipherSuiteString(suite));
+                }
+                byVersion.put(versionString(e.getKey()), names);
+            }
+            return byVersion;
+        }
+
+        /*
+         * Versions whose enumeration ran out of time; their suite lists
+         * may miss some accepted suites.
+         */
+        public synchronized List<String> getIncompleteVersions() {
+            return versionStrings(incompleteVersions);
+        }
+
+        public synchronized String getMinStrength() {
+            int m = STRONG;
+            for (Set<Integer> vs : suites.values()) {
+                m = Math.min(m, minStrength(vs));
+            }
+            return strengthString(m);
+        }
+
+        public synchronized String getMaxStrength() {
+            int m = STRONG;
+            for (Set<Integer> vs : suites.values()) {
+                m = Math.min(m, maxStrength(vs));
+            }
+            return strengthString(m);
+        }
+
+        public boolean isBEASTVulnerable() {
+            return beastVulnerable;
+        }
+
+        /*
+         * One line summary, e.g. for a result file column.
+         */
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<String, List<String>> e : getSuitesByVersion().entrySet()) {
+                sb.append(e.getKey()).append(":");
+                for (String name : e.getValue()) {
+                    sb.append(' ').append(name);
+                }
+                sb.append("; ");
+            }
+            if (incompleteVersions.size() > 0) {
+                sb.append("INCOMPLETE (timed out): ").append(getIncompleteVersions()).append("; ");
+            }
+            sb.append("Minimal strength: ").append(getMinStrength()).append("; ");
+            sb.append("Achievable strength: ").append(getMaxStrength()).append("; ");
+            sb.append("BEAST: ").append(beastVulnerable ? "vulnerable" : "protected");
+            return sb.toString();
+        }
+    }
+
+    /*
+     * Thrown when some probes of an endpoint ran out of their time
+     * budget. This is not the same as "version not supported": the
+     * server may or may not support the timed out versions.
+     */
+    public static class ScanTimeoutException extends SocketTimeoutException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<String> timedOutProbes;
+        private final List<String> protocolsSeen;
+
+        ScanTimeoutException(InetSocketAddress isa, List<String> timedOutProbes, List<String> protocolsSeen) {
+            super("scan of " + isa + " timed out for " + timedOutProbes);
+            this.timedOutProbes = timedOutProbes;
+            this.protocolsSeen = protocolsSeen;
+        }
+
+        /*
+         * Versions whose probe did not complete in time.
+         */
+        public List<String> getTimedOutProbes() {
+            return timedOutProbes;
+        }
+
+        /*
+         * Versions the server did answer with, before time ran out.
+         */
+        public List<String> getProtocolsSeen() {
+            return protocolsSeen;
+        }
+    }
+
+    static List<String> versionStrings(Set<Integer> versions) {
+        List<String> vs = new ArrayList<String>();
+        for (int v : versions) {
+            vs.add(versionString(v));
+        }
+        return vs;
+    }
+
+    /*
+     * Absolute deadline of a probe starting now: the probe budget,
+     * capped by what is left of the endpoint budget.
+     */
+    static long probeDeadline(int probeTimeoutMillis, long endpointDeadline) {
+        return Math.min(System.currentTimeMillis() + probeTimeoutMillis, endpointDeadline);
+    }
+
+    /*
+     * Milliseconds left until the deadline; a timeout is raised when
+     * there are none left.
+     */
+    static int remainingMillis(long deadline) throws SocketTimeoutException {
+        long rem = deadline - System.currentTimeMillis();
+        if (rem <= 0) {
+            throw new SocketTimeoutException("probe time budget exhausted");
+        }
+        return (int) Math.min(rem, Integer.MAX_VALUE);
+    }
+
+    /*
+     * Probe threads are daemons, so that a stuck handshake never keeps
+     * the JVM alive.
+     */
+    static final ThreadFactory PROBE_THREAD_FACTORY = new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "TestSSLServer-probe-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
     /*
      * Get cipher suites supported by the server. This is done by
      * repeatedly contacting the server, each time removing from our
@@ -259,6 +636,21 @@ public class TestSSLServer {
     }
 
     static boolean testBEAST(InetSocketAddress isa, int version, Set<Integer> supp) {
+        try {
+            return testBEAST(isa, version, supp, System.currentTimeMillis() + DEFAULT_PROBE_TIMEOUT_MS,
+                defaultWriteWatchdog());
+        } catch (SocketTimeoutException ste) {
+            return false;
+        }
+    }
+
+    /*
+     * Same as above, but the probe must complete before the provided
+     * deadline; running out of time raises a SocketTimeoutException
+     * (see connect()).
+     */
+    static boolean testBEAST(InetSocketAddress isa, int version, Set<Integer> supp, long deadline,
+        ScheduledExecutorService writeWatchdog) throws SocketTimeoutException {
         /*
          * TLS 1.1+ is not vulnerable to BEAST.
          * We do not test SSLv2 either.
@@ -298,8 +690,8 @@ public class TestSSLServer {
         }
         List<Integer> ns = new ArrayList<Integer>(strongCBC);
         ns.addAll(strongStream);
-        ServerHello sh = connect(isa, version, ns);
-        return !strongStream.contains(sh.cipherSuite);
+        ServerHello sh = connect(isa, version, ns, deadline, true, writeWatchdog);
+        return sh != null && !strongStream.contains(sh.cipherSuite);
     }
 
     static String versionString(int version) {
@@ -316,28 +708,60 @@ public class TestSSLServer {
 
     /*
      * Connect to the server, send a ClientHello, and decode the
-     * response (ServerHello). On error, null is returned.
+     * response (ServerHello). On error, null is returned. The probe
+     * gets the default time budget; running out of it also yields null.
      */
     static ServerHello connect(InetSocketAddress isa, int version, Collection<Integer> cipherSuites) {
+        try {
+            return connect(isa, version, cipherSuites, System.currentTimeMillis() + DEFAULT_PROBE_TIMEOUT_MS);
+        } catch (SocketTimeoutException ste) {
+            return null;
+        }
+    }
+
+    /*
+     * Same as above, but the whole exchange must complete before the
+     * provided deadline (absolute time, in milliseconds). Running out
+     * of time raises a SocketTimeoutException; other errors yield null.
+     */
+    static ServerHello connect(InetSocketAddress isa, int version, Collection<Integer> cipherSuites, long deadline)
+        throws SocketTimeoutException {
+        return connect(isa, version, cipherSuites, deadline, false, defaultWriteWatchdog());
+    }
+
+    /*
+     * Same as above. In lean mode, only the ServerHello itself is
+     * decoded (see ServerHello) and the connection is closed right
+     * after it, without waiting for the server certificate. A write
+     * blocked past the deadline is broken by the provided watchdog
+     * (see newWriteWatchdog()).
+     */
+    static ServerHello connect(InetSocketAddress isa, int version, Collection<Integer> cipherSuites, long deadline,
+        boolean lean, ScheduledExecutorService writeWatchdog) throws SocketTimeoutException {
         Socket s = null;
+        ScheduledFuture<?> writeGuard = null;
         try {
             s = new Socket();
             try {
-                s.connect(isa);
+                s.connect(isa, remainingMillis(deadline));
+            } catch (SocketTimeoutException ste) {
+                throw ste;
             } catch (IOException ioe) {
                 System.err.println("could not connect to " + isa + ": " + ioe.toString());
                 return null;
             }
-            byte[] ch = makeClientHello(version, cipherSuites);
-            OutputRecord orec = new OutputRecord(s.getOutputStream());
-            orec.setType(HANDSHAKE);
-            orec.setVersion(version);
-            orec.write(ch);
-            orec.flush();
-            return new ServerHello(s.getInputStream());
+            writeGuard = closeAtDeadline(writeWatchdog, s, deadline);
+            writeClientHello(s.getOutputStream(), version, cipherSuites);
+            writeGuard.cancel(false);
+            return new ServerHello(new DeadlineInputStream(s, deadline), lean);
         } catch (IOException ioe) {
-            // ignored
+            if (ioe instanceof SocketTimeoutException || System.currentTimeMillis() >= deadline) {
+                throw new SocketTimeoutException("probe of " + versionString(version) + " on " + isa + " timed out");
+            }
         } finally {
+            if (writeGuard != null) {
+                writeGuard.cancel(false);
+            }
             try {
                 s.close();
             } catch (IOException ioe) {
@@ -352,20 +776,50 @@ public class TestSSLServer {
      * the response (SERVER HELLO). On error, null is returned.
      */
     static ServerHelloSSLv2 connectV2(InetSocketAddress isa) {
+        try {
+            return connectV2(isa, System.currentTimeMillis() + DEFAULT_PROBE_TIMEOUT_MS);
+        } catch (SocketTimeoutException ste) {
+            return null;
+        }
+    }
+
+    /*
+     * Same as above, bounded by the provided deadline (see connect()).
+     */
+    static ServerHelloSSLv2 connectV2(InetSocketAddress isa, long deadline) throws SocketTimeoutException {
+        return connectV2(isa, deadline, false, defaultWriteWatchdog());
+    }
+
+    /*
+     * Same as above, with optional lean decoding (see ServerHelloSSLv2)
+     * and the provided write watchdog.
+     */
+    static ServerHelloSSLv2 connectV2(InetSocketAddress isa, long deadline, boolean lean,
+        ScheduledExecutorService writeWatchdog) throws SocketTimeoutException {
         Socket s = null;
+        ScheduledFuture<?> writeGuard = null;
         try {
             s = new Socket();
             try {
-                s.connect(isa);
+                s.connect(isa, remainingMillis(deadline));
+            } catch (SocketTimeoutException ste) {
+                throw ste;
             } catch (IOException ioe) {
                 System.err.println("could not connect to " + isa + ": " + ioe.toString());
                 return null;
             }
+            writeGuard = closeAtDeadline(writeWatchdog, s, deadline);
             s.getOutputStream().write(SSL2_CLIENT_HELLO);
-            return new ServerHelloSSLv2(s.getInputStream());
+            writeGuard.cancel(false);
+            return new ServerHelloSSLv2(new DeadlineInputStream(s, deadline), lean);
         } catch (IOException ioe) {
-            // ignored
+            if (ioe instanceof SocketTimeoutException || System.currentTimeMillis() >= deadline) {
+                throw new SocketTimeoutException("probe of SSLv2 on " + isa + " timed out");
+            }
         } finally {
+            if (writeGuard != null) {
+                writeGuard.cancel(false);
+            }
             try {
                 s.close();
             } catch (IOException ioe) {
@@ -375,6 +829,81 @@ public class TestSSLServer {
         return null;
     }
 
+    /*
+     * Socket writes do not honour SO_TIMEOUT. A write blocked past the
+     * deadline (server not reading, zero TCP window) is broken by
+     * closing the socket from a watchdog thread. Each SSLProtocolScanner
+     * owns its watchdog; the default one is only used by the static
+     * entry points which probe without a scanner. The watchdog thread
+     * is a daemon and goes away when idle.
+     */
+    static ScheduledExecutorService newWriteWatchdog() {
+        ScheduledThreadPoolExecutor watchdog = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "TestSSLServer-write-watchdog");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        watchdog.setRemoveOnCancelPolicy(true);
+        watchdog.setKeepAliveTime(WATCHDOG_KEEP_ALIVE_SECS, TimeUnit.SECONDS);
+        watchdog.allowCoreThreadTimeOut(true);
+        return watchdog;
+    }
+
+    private static final long WATCHDOG_KEEP_ALIVE_SECS = 30;
+
+    private static class DefaultWriteWatchdog {
+        static final ScheduledExecutorService INSTANCE = newWriteWatchdog();
+    }
+
+    private static ScheduledExecutorService defaultWriteWatchdog() {
+        return DefaultWriteWatchdog.INSTANCE;
+    }
+
+    private static ScheduledFuture<?> closeAtDeadline(ScheduledExecutorService writeWatchdog, final Socket s,
+        long deadline) throws SocketTimeoutException {
+        return writeWatchdog.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    s.close();
+                } catch (IOException ioe) {
+                    // ignored
+                }
+            }
+        }, remainingMillis(deadline), TimeUnit.MILLISECONDS);
+    }
+
+    /*
+     * Socket input stream which sets SO_TIMEOUT to the time left
+     * before the deadline on every read, so that a server trickling
+     * its answer cannot stretch the probe past its budget.
+     */
+    static class DeadlineInputStream extends InputStream {
+
+        private final Socket s;
+        private final InputStream in;
+        private final long deadline;
+
+        DeadlineInputStream(Socket s, long deadline) throws IOException {
+            this.s = s;
+            this.in = s.getInputStream();
+            this.deadline = deadline;
+        }
+
+        public int read() throws IOException {
+            s.setSoTimeout(remainingMillis(deadline));
+            return in.read();
+        }
+
+        public int read(byte[] buf, int off, int len) throws IOException {
+            s.setSoTimeout(remainingMillis(deadline));
+            return in.read(buf, off, len);
+        }
+    }
+
     static final void enc16be(int val, byte[] buf, int off) {
         buf[off] = (byte) (val >>> 8);
         buf[off + 1] = (byte) val;
@@ -413,6 +942,33 @@ public class TestSSLServer {
 
     static final int MAX_RECORD_LEN = 16384;
 
+    /*
+     * Per-thread pools of record buffers, used by OutputRecord and
+     * InputRecord. A stream takes a buffer when created and gives it
+     * back with release(), on the same probe thread, so no lock is
+     * taken. When the pool is empty a new buffer is allocated; buffers
+     * given back to a full pool are dropped.
+     */
+    static final int RECORD_BUFFERS_PER_THREAD = 4;
+    private static final ThreadLocal<ArrayDeque<byte[]>> RECORD_BUFFERS = new ThreadLocal<ArrayDeque<byte[]>>() {
+        @Override
+        protected ArrayDeque<byte[]> initialValue() {
+            return new ArrayDeque<byte[]>(RECORD_BUFFERS_PER_THREAD);
+        }
+    };
+
+    static byte[] acquireRecordBuffer() {
+        byte[] buf = RECORD_BUFFERS.get().poll();
+        return buf != null ? buf : new byte[MAX_RECORD_LEN + 5];
+    }
+
+    static void releaseRecordBuffer(byte[] buf) {
+        ArrayDeque<byte[]> buffers = RECORD_BUFFERS.get();
+        if (buffers.size() < RECORD_BUFFERS_PER_THREAD) {
+            buffers.push(buf);
+        }
+    }
+
     /*
      * A custom stream which encodes data bytes into SSL/TLS records
      * (no encryption).
@@ -420,7 +976,7 @@ public class TestSSLServer {
     static class OutputRecord extends OutputStream {
 
         private OutputStream out;
-        private byte[] buffer = new byte[MAX_RECORD_LEN + 5];
+        private byte[] buffer = acquireRecordBuffer();
         private int ptr;
         private int version;
         private int type;
@@ -430,6 +986,17 @@ public class TestSSLServer {
             ptr = 5;
         }
 
+        /*
+         * Give the record buffer back to the pool. The stream must
+         * not be used afterwards.
+         */
+        void release() {
+            if (buffer != null) {
+                releaseRecordBuffer(buffer);
+                buffer = null;
+            }
+        }
+
         void setType(int type) {
             this.type = type;
         }
@@ -468,6 +1035,167 @@ public class TestSSLServer {
         }
     }
 
+    /*
+     * Encode a complete ClientHello record (header included).
+     */
+    static byte[] encodeClientHelloRecord(int version, Collection<Integer> cipherSuites) {
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        OutputRecord orec = new OutputRecord(b);
+        try {
+            orec.setType(HANDSHAKE);
+            orec.setVersion(version);
+            orec.write(makeClientHello0(version, cipherSuites));
+            orec.flush();
+            return b.toByteArray();
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        } finally {
+            orec.release();
+        }
+    }
+
+    /*
+     * The ClientHello records offering all of CIPHER_SUITES are built
+     * once per version. Only the client random changes from one probe
+     * to the next; it is patched in a copy of the template.
+     */
+    private static final ConcurrentMap<Integer, byte[]> HELLO_TEMPLATES = new ConcurrentHashMap<Integer, byte[]>();
+
+    /*
+     * Offset of the client random in a ClientHello record: record
+     * header (5 bytes), handshake header (4) and version (2).
+     */
+    private static final int HELLO_RANDOM_OFFSET = 11;
+
+    private static final ThreadLocal<byte[]> HELLO_RANDOM = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[32];
+        }
+    };
+
+    private static final ThreadLocal<byte[]> HELLO_SCRATCH = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[0];
+        }
+    };
+
+    static byte[] clientHelloTemplate(int version) {
+        byte[] template = HELLO_TEMPLATES.get(version);
+        if (template == null) {
+            template = encodeClientHelloRecord(version, CIPHER_SUITES.keySet());
+            byte[] prev = HELLO_TEMPLATES.putIfAbsent(version, template);
+            if (prev != null) {
+                template = prev;
+            }
+        }
+        return template;
+    }
+
+    static boolean isAllCipherSuites(Collection<Integer> cipherSuites) {
+        Set<Integer> all = CIPHER_SUITES.keySet();
+        return cipherSuites == all || (cipherSuites.size() == all.size() && all.equals(cipherSuites));
+    }
+
+    /*
+     * A fresh client random: the current time (seconds, over 32 bits)
+     * followed by random bytes. The returned array belongs to the
+     * calling thread and is overwritten by the next call.
+     */
+    static byte[] clientRandom() {
+        byte[] rand = HELLO_RANDOM.get();
+        RNG.get().nextBytes(rand);
+        enc32be((int) (System.currentTimeMillis() / 1000), rand, 0);
+        return rand;
+    }
+
+    /*
+     * Write a complete ClientHello record on the stream. When all
+     * cipher suites are offered, the record is a copy of the version
+     * template, made in a per-thread scratch buffer.
+     */
+    static void writeClientHello(OutputStream out, int version, Collection<Integer> cipherSuites)
+        throws IOException {
+        if (isAllCipherSuites(cipherSuites)) {
+            byte[] template = clientHelloTemplate(version);
+            byte[] rec = HELLO_SCRATCH.get();
+            if (rec.length < template.length) {
+                rec = new byte[template.length];
+                HELLO_SCRATCH.set(rec);
+            }
+            System.arraycopy(template, 0, rec, 0, template.length);
+            System.arraycopy(clientRandom(), 0, rec, HELLO_RANDOM_OFFSET, 32);
+            out.write(rec, 0, template.length);
+            out.flush();
+            return;
+        }
+
+        OutputRecord orec = new OutputRecord(out);
+        try {
+            orec.setType(HANDSHAKE);
+            orec.setVersion(version);
+            orec.write(makeClientHello0(version, cipherSuites));
+            orec.flush();
+        } finally {
+            orec.release();
+        }
+    }
+
+    /*
+     * Put a complete ClientHello record offering all cipher suites in
+     * a ByteBuffer, ready to be written on a non-blocking channel. The
+     * provided buffer is reused when large enough (it may be null).
+     */
+    static ByteBuffer makeClientHelloRecord(int version, ByteBuffer reuse) {
+        byte[] template = clientHelloTemplate(version);
+        ByteBuffer rec = reuse;
+        if (rec == null || rec.capacity() < template.length) {
+            rec = ByteBuffer.allocate(template.length);
+        }
+        rec.clear();
+        rec.put(template);
+        rec.position(HELLO_RANDOM_OFFSET);
+        rec.put(clientRandom());
+        rec.position(0);
+        rec.limit(template.length);
+        return rec;
+    }
+
+    /*
+     * An input stream over the bytes received so far in a ByteBuffer.
+     * Reaching the end of the buffer looks like end-of-stream, so the
+     * decoders below fail with an EOFException when the server answer
+     * is not complete yet.
+     */
+    static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buf;
+
+        ByteBufferInputStream(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        public int read() {
+            if (!buf.hasRemaining()) {
+                return -1;
+            }
+            return buf.get() & 0xFF;
+        }
+
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buf.hasRemaining()) {
+                return -1;
+            }
+            int clen = Math.min(buf.remaining(), len);
+            buf.get(b, off, clen);
+            return clen;
+        }
+    }
+
     static void readFully(InputStream in, byte[] buf) throws IOException {
         readFully(in, buf, 0, buf.length);
     }
@@ -492,7 +1220,7 @@ public class TestSSLServer {
     static class InputRecord extends InputStream {
 
         private InputStream in;
-        private byte[] buffer = new byte[MAX_RECORD_LEN + 5];
+        private byte[] buffer = acquireRecordBuffer();
         private int ptr, end;
         private int version;
         private int type;
@@ -504,6 +1232,17 @@ public class TestSSLServer {
             end = 0;
         }
 
+        /*
+         * Give the record buffer back to the pool. The stream must
+         * not be used afterwards.
+         */
+        void release() {
+            if (buffer != null) {
+                releaseRecordBuffer(buffer);
+                buffer = null;
+            }
+        }
+
         void setExpectedType(int expectedType) {
             this.expectedType = expectedType;
         }
@@ -552,7 +1291,16 @@ public class TestSSLServer {
         }
     }
 
-    private static final SecureRandom RNG = new SecureRandom();
+    /*
+     * Each thread has its own generator, so that concurrent probes do
+     * not contend on a shared SecureRandom.
+     */
+    private static final ThreadLocal<SecureRandom> RNG = new ThreadLocal<SecureRandom>() {
+        @Override
+        protected SecureRandom initialValue() {
+            return new SecureRandom();
+        }
+    };
 
     /*
      * Build a ClientHello message, with the specified maximum
@@ -593,7 +1341,7 @@ public class TestSSLServer {
          * leap seconds).
          */
         byte[] rand = new byte[32];
-        RNG.nextBytes(rand);
+        RNG.get().nextBytes(rand);
         enc32be((int) (System.currentTimeMillis() / 1000), rand, 0);
         b.write(rand);
 
@@ -665,6 +1413,12 @@ public class TestSSLServer {
      * This class decodes a ServerHello message from the server. The
      * fields we are interested in are stored in the
      * package-accessible fields.
+     *
+     * In lean mode, decoding stops once the protocol version, cipher
+     * suite and compression are known: the following messages, and
+     * the server certificate, are neither read nor parsed, and
+     * serverCertName/serverCertHash stay null. This is all a protocol
+     * version scan needs.
      */
     static class ServerHello {
 
@@ -677,7 +1431,19 @@ public class TestSSLServer {
         String serverCertHash;
 
         ServerHello(InputStream in) throws IOException {
+            this(in, false);
+        }
+
+        ServerHello(InputStream in, boolean lean) throws IOException {
             InputRecord rec = new InputRecord(in);
+            try {
+                decode(rec, lean);
+            } finally {
+                rec.release();
+            }
+        }
+
+        private void decode(InputRecord rec, boolean lean) throws IOException {
             rec.setExpectedType(HANDSHAKE);
 
             /*
@@ -734,6 +1500,9 @@ public class TestSSLServer {
             }
             cipherSuite = dec16be(buf, ptr);
             compression = buf[ptr + 2] & 0xFF;
+            if (lean) {
+                return;
+            }
 
             /*
              * The ServerHello could include some extensions
@@ -817,6 +1586,14 @@ public class TestSSLServer {
         0x54, 0x54, 0x54, 0x54, // challenge data (16 bytes)
         0x54, 0x54, 0x54, 0x54, 0x54, 0x54, 0x54, 0x54, 0x54, 0x54, 0x54, 0x54 };
 
+    /*
+     * The SSLv2 CLIENT HELLO, wrapped for writing on a non-blocking
+     * channel. The backing array is shared and must not be modified.
+     */
+    static ByteBuffer sslv2ClientHello() {
+        return ByteBuffer.wrap(SSL2_CLIENT_HELLO).asReadOnlyBuffer();
+    }
+
     /*
      * This class represents the response of a server which knows
      * $ SSLv2. It includes the list of cipher suites, and the
@@ -829,6 +1606,14 @@ public class TestSSLServer {
         String serverCertHash;
 
         ServerHelloSSLv2(InputStream in) throws IOException {
+            this(in, false);
+        }
+
+        /*
+         * In lean mode, only the message header is read and checked;
+         * cipherSuites and the certificate fields stay null.
+         */
+        ServerHelloSSLv2(InputStream in, boolean lean) throws IOException {
             // Record length
             byte[] buf = new byte[2];
             readFully(in, buf);
@@ -854,6 +1639,9 @@ public class TestSSLServer {
             if (csLen == 0 || csLen % 3 != 0) {
                 throw new IOException("not a SSLv2 server hello");
             }
+            if (lean) {
+                return;
+            }
             byte[] cert = new byte[certLen];
             readFully(in, cert);
             byte[] cs = new byte[csLen];
@@ -875,7 +1663,13 @@ public class TestSSLServer {
         }
     }
 
-    static Map<Integer, CipherSuite> CIPHER_SUITES = new TreeMap<Integer, CipherSuite>();
+    /*
+     * Known cipher suites, read-only once the class is initialized.
+     * makeCS() fills suitesInInit from the static initializer below,
+     * which then freezes it into CIPHER_SUITES.
+     */
+    static final Map<Integer, CipherSuite> CIPHER_SUITES;
+    private static Map<Integer, CipherSuite> suitesInInit = new TreeMap<Integer, CipherSuite>();
 
     static class CipherSuite {
 
@@ -908,7 +1702,7 @@ public class TestSSLServer {
     static final String cipherSuiteString(int suite) {
         CipherSuite cs = CIPHER_SUITES.get(suite);
         if (cs == null) {
-            return String.format("UNKNOWN_SUITE:0x%04X", cs);
+            return String.format("UNKNOWN_SUITE:0x%04X", suite);
         } else {
             return cs.name;
         }
@@ -929,7 +1723,7 @@ public class TestSSLServer {
         cs.name = name;
         cs.isCBC = isCBC;
         cs.strength = strength;
-        CIPHER_SUITES.put(suite, cs);
+        suitesInInit.put(suite, cs);
 
         /*
          * Consistency test: the strength and CBC status can normally
@@ -1345,5 +2139,8 @@ public class TestSSLServer {
         S8(0xC0A9, "TLS_PSK_WITH_AES_256_CCM_8");
         S8(0xC0AA, "TLS_PSK_DHE_WITH_AES_128_CCM_8");
         S8(0xC0AB, "TLS_PSK_DHE_WITH_AES_256_CCM_8");
+
+        CIPHER_SUITES = Collections.unmodifiableMap(suitesInInit);
+        suitesInInit = null;
     }
 }